@@ -0,0 +1,434 @@
+
+import edu.princeton.cs.algs4.RectHV;
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.StdDraw;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Same 2d-tree as KdTree, with the nodes stored in parallel arrays instead of
+ * Node objects. Node i has its point at (xs[i], ys[i]) and its subtrees at
+ * left[i] and right[i]. The rectangle of a node is not stored, it is narrowed
+ * down on the way from the root instead. That is 24 bytes per point and no
+ * pointer chasing through Point2D / RectHV objects.
+ *
+ * Points are split in the same order as in KdTree (see KdTree.compare), but
+ * the tree is not rebalanced, so sorted input makes it deep. The searches
+ * walk it with an explicit stack, so a deep tree is slow but never
+ * overflows the call stack. Like KdTree it takes any coordinates, the
+ * rectangles are cut from the bounding box of the points.
+ *
+ * @author devin
+ */
+public class CompactKdTree {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // node 0 is the root and never a child, so 0 also means "no subtree"
+    private double[] xs;
+    private double[] ys;
+    private int[] left;
+    private int[] right;
+    private int size;
+
+    // bounding box of the points, the root's rectangle in the searches.
+    // Grows with the points, so any coordinates can be inserted.
+    private double xmin = Double.POSITIVE_INFINITY;
+    private double ymin = Double.POSITIVE_INFINITY;
+    private double xmax = Double.NEGATIVE_INFINITY;
+    private double ymax = Double.NEGATIVE_INFINITY;
+
+    public CompactKdTree() {
+        // construct an empty set of points
+        xs = new double[INITIAL_CAPACITY];
+        ys = new double[INITIAL_CAPACITY];
+        left = new int[INITIAL_CAPACITY];
+        right = new int[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    public boolean isEmpty() {
+        // is the set empty?
+        return size == 0;
+    }
+
+    public int size() {
+        // number of points in the set
+        return size;
+    }
+
+    /**
+     * Grow the arrays if they are full.
+     */
+    private void ensureCapacity() {
+        if (size == xs.length) {
+            int capacity = 2 * xs.length;
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+        }
+    }
+
+    public void insert(Point2D p) {
+        // add the point to the set (if it is not already in the set)
+        if (p == null) {
+            throw new IllegalArgumentException();
+        }
+
+        double x = p.x();
+        double y = p.y();
+
+        if (size == 0) {
+            addNode(x, y);
+            return;
+        }
+
+        int n = 0;
+        boolean vertical = true;
+        while (true) {
+            if (x == xs[n] && y == ys[n]) {
+                return; //dupe
+            }
+
+            //same order as KdTree.comparePoints
+            boolean goLeft = KdTree.compare(x, y, xs[n], ys[n], vertical) <= 0;
+
+            int child = goLeft ? left[n] : right[n];
+            if (child == 0) {
+                int newNode = addNode(x, y);
+                if (goLeft) {
+                    left[n] = newNode;
+                } else {
+                    right[n] = newNode;
+                }
+                return;
+            }
+            n = child;
+            vertical = !vertical;
+        }
+    }
+
+    /**
+     * Append a node without subtrees.
+     *
+     * @param x
+     * @param y
+     * @return index of the new node
+     */
+    private int addNode(double x, double y) {
+        ensureCapacity();
+        xmin = Math.min(xmin, x);
+        ymin = Math.min(ymin, y);
+        xmax = Math.max(xmax, x);
+        ymax = Math.max(ymax, y);
+        xs[size] = x;
+        ys[size] = y;
+        left[size] = 0;
+        right[size] = 0;
+        return size++;
+    }
+
+    public boolean contains(Point2D p) {
+        // does the set contain point p?
+        if (p == null) {
+            throw new IllegalArgumentException();
+        }
+
+        if (size == 0) {
+            return false;
+        }
+
+        double x = p.x();
+        double y = p.y();
+
+        int n = 0;
+        boolean vertical = true;
+        while (true) {
+            if (x == xs[n] && y == ys[n]) {
+                return true;
+            }
+
+            n = KdTree.compare(x, y, xs[n], ys[n], vertical) <= 0 ? left[n] : right[n];
+            if (n == 0) {
+                return false;
+            }
+            vertical = !vertical;
+        }
+    }
+
+    public void draw() {
+        // draw all points to standard draw
+        if (size == 0) {
+            StdDraw.show();
+            return;
+        }
+
+        //each node's line is drawn across its rectangle
+        SearchStack stack = new SearchStack();
+        stack.push(0, true, xmin, ymin, xmax, ymax);
+        while (stack.top > 0) {
+            int n = stack.pop();
+            boolean vertical = stack.verticals[stack.top];
+            double[] cell = stack.cells;
+            int c = 4 * stack.top;
+
+            if (vertical) {
+                StdDraw.setPenColor(StdDraw.RED);
+                StdDraw.setPenRadius(0.001);
+                StdDraw.line(xs[n], cell[c + 1], xs[n], cell[c + 3]);
+            } else {
+                StdDraw.setPenColor(StdDraw.BLUE);
+                StdDraw.setPenRadius(0.001);
+                StdDraw.line(cell[c], ys[n], cell[c + 2], ys[n]);
+            }
+
+            StdDraw.setPenColor(StdDraw.BLACK);
+            StdDraw.setPenRadius(0.01);
+            StdDraw.point(xs[n], ys[n]);
+
+            stack.pushChildren(n, vertical, cell[c], cell[c + 1], cell[c + 2], cell[c + 3], -1);
+        }
+        StdDraw.show();
+    }
+
+    /**
+     * Pending nodes of a walk down the tree, with their orientation and
+     * rectangle (xmin, ymin, xmax, ymax at cells[4 * i]). The top is
+     * visited next.
+     */
+    private class SearchStack {
+
+        private int[] nodes = new int[64];
+        private boolean[] verticals = new boolean[64];
+        private double[] cells = new double[4 * 64];
+        private int top = 0;
+
+        private void push(int n, boolean vertical,
+                double xmin, double ymin, double xmax, double ymax) {
+            if (top == nodes.length) {
+                nodes = Arrays.copyOf(nodes, 2 * top);
+                verticals = Arrays.copyOf(verticals, 2 * top);
+                cells = Arrays.copyOf(cells, 8 * top);
+            }
+            nodes[top] = n;
+            verticals[top] = vertical;
+            cells[4 * top] = xmin;
+            cells[4 * top + 1] = ymin;
+            cells[4 * top + 2] = xmax;
+            cells[4 * top + 3] = ymax;
+            top++;
+        }
+
+        private int pop() {
+            return nodes[--top];
+        }
+
+        /**
+         * Push the subtrees of n with their rectangles, cut from n's at its
+         * line. The one with the given index is pushed last, so it is
+         * visited first.
+         */
+        private void pushChildren(int n, boolean vertical,
+                double xmin, double ymin, double xmax, double ymax, int first) {
+            int l = left[n];
+            int r = right[n];
+            if (l != 0 && l != first) {
+                push(l, !vertical, xmin, ymin, vertical ? xs[n] : xmax, vertical ? ymax : ys[n]);
+            }
+            if (r != 0) {
+                push(r, !vertical, vertical ? xs[n] : xmin, vertical ? ymin : ys[n], xmax, ymax);
+            }
+            if (l != 0 && l == first) {
+                push(l, !vertical, xmin, ymin, vertical ? xs[n] : xmax, vertical ? ymax : ys[n]);
+            }
+        }
+    }
+
+    public Iterable<Point2D> range(RectHV rect) {
+
+        if (rect == null) {
+            throw new IllegalArgumentException();
+        }
+        ArrayList<Point2D> rangePoints = new ArrayList<>();
+        if (size == 0) {
+            return rangePoints;
+        }
+
+        range(rect, rangePoints, 0);
+        return rangePoints;
+    }
+
+    /**
+     * Walk the subtrees the rectangle can have points in, with a stack of
+     * pending nodes. The query rectangle is compared with the node's point
+     * like in KdTree.range, its rectangle is not needed: the left subtree
+     * only has points before the point, the right one only points strictly
+     * after it.
+     *
+     * @param rect
+     * @param rangePoints
+     * @param root
+     */
+    private void range(RectHV rect, ArrayList<Point2D> rangePoints, int root) {
+
+        int[] stack = new int[64];
+        boolean[] verticals = new boolean[64];
+        int top = 0;
+        stack[top] = root;
+        verticals[top++] = true;
+
+        while (top > 0) {
+            int n = stack[--top];
+            boolean vertical = verticals[top];
+            double x = xs[n];
+            double y = ys[n];
+
+            if (x >= rect.xmin() && x <= rect.xmax() && y >= rect.ymin() && y <= rect.ymax()) {
+                rangePoints.add(new Point2D(x, y));
+            }
+
+            if (top + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+                verticals = Arrays.copyOf(verticals, 2 * verticals.length);
+            }
+            if (right[n] != 0 && KdTree.compare(rect.xmax(), rect.ymax(), x, y, vertical) > 0) {
+                stack[top] = right[n];
+                verticals[top++] = !vertical;
+            }
+            if (left[n] != 0 && KdTree.compare(rect.xmin(), rect.ymin(), x, y, vertical) < 0) {
+                stack[top] = left[n];
+                verticals[top++] = !vertical;
+            }
+        }
+    }
+
+    public Point2D nearest(Point2D p) {
+        // a nearest neighbor in the set to point p; null if the set is empty
+        if (p == null) {
+            throw new IllegalArgumentException();
+        }
+
+        if (size == 0) {
+            return null;
+        }
+
+        //same search order and pruning as KdTree.nearestNode: the subtree
+        //on the side of p is visited first, and a node is skipped if its
+        //rectangle is no nearer than the best point so far
+        double px = p.x();
+        double py = p.y();
+        int best = 0;
+        double bestDistance = distanceSquared(px, py, 0);
+
+        SearchStack stack = new SearchStack();
+        stack.push(0, true, xmin, ymin, xmax, ymax);
+        while (stack.top > 0) {
+            int n = stack.pop();
+            boolean vertical = stack.verticals[stack.top];
+            double[] cell = stack.cells;
+            int c = 4 * stack.top;
+
+            if (rectDistanceSquared(px, py, cell[c], cell[c + 1], cell[c + 2], cell[c + 3]) >= bestDistance) {
+                continue;
+            }
+            double distance = distanceSquared(px, py, n);
+            if (distance < bestDistance) {
+                best = n;
+                bestDistance = distance;
+            }
+
+            boolean nearLeft = KdTree.compare(px, py, xs[n], ys[n], vertical) <= 0;
+            stack.pushChildren(n, vertical, cell[c], cell[c + 1], cell[c + 2], cell[c + 3],
+                    nearLeft ? left[n] : -1);
+        }
+
+        return new Point2D(xs[best], ys[best]);
+    }
+
+    private double distanceSquared(double px, double py, int n) {
+        double dx = xs[n] - px;
+        double dy = ys[n] - py;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Squared distance from a point to a rectangle, 0 if it is inside.
+     * Same as RectHV.distanceSquaredTo without the RectHV.
+     *
+     * @return
+     */
+    private static double rectDistanceSquared(double px, double py,
+            double xmin, double ymin, double xmax, double ymax) {
+        double dx = 0;
+        double dy = 0;
+        if (px < xmin) {
+            dx = px - xmin;
+        } else if (px > xmax) {
+            dx = px - xmax;
+        }
+        if (py < ymin) {
+            dy = py - ymin;
+        } else if (py > ymax) {
+            dy = py - ymax;
+        }
+        return dx * dx + dy * dy;
+    }
+
+    public static void main(String[] args) {
+        // unit testing of the methods (optional)
+        CompactKdTree kd = new CompactKdTree();
+
+        assert (kd.size() == 0);
+        assert (kd.isEmpty());
+        assert (kd.nearest(new Point2D(1, 1)) == null);
+
+        kd.insert(new Point2D(0.7, 0.2));
+        assert (kd.contains(new Point2D(0.7, 0.2)));
+        assert (kd.nearest(new Point2D(1, 1)).equals(new Point2D(0.7, 0.2)));
+
+        //dupe
+        kd.insert(new Point2D(0.7, 0.2));
+        assert (kd.size() == 1);
+
+        kd.insert(new Point2D(0.5, 0.4));
+        kd.insert(new Point2D(0.2, 0.3));
+        kd.insert(new Point2D(0.4, 0.7));
+        kd.insert(new Point2D(0.9, 0.6));
+        assert (kd.size() == 5);
+
+        assert (!kd.contains(new Point2D(0, 0)));
+        assert (!kd.contains(new Point2D(1, 1)));
+        assert (kd.nearest(new Point2D(0.4, 0.4)).equals(new Point2D(0.5, 0.4)));
+        assert (kd.nearest(new Point2D(0.633, 0.78)).equals(new Point2D(0.4, 0.7)));
+
+        int count = 0;
+        for (Point2D p : kd.range(new RectHV(0.3, 0.3, 1, 1))) {
+            assert (p.x() >= 0.3 && p.y() >= 0.3);
+            count++;
+        }
+        assert (count == 3);
+
+        //more points than the initial capacity
+        for (int i = 0; i < 100; i++) {
+            kd.insert(new Point2D(i / 100.0, (i * 37 % 100) / 100.0));
+        }
+        assert (kd.contains(new Point2D(0.99, 0.63)));
+
+        //sorted inserts make a deep tree, the searches still work
+        CompactKdTree sorted = new CompactKdTree();
+        int n = 30000;
+        for (int i = 0; i < n; i++) {
+            sorted.insert(new Point2D(i, 0.5));
+        }
+        assert (sorted.nearest(new Point2D(n + 1, 0)).equals(new Point2D(n - 1, 0.5)));
+        count = 0;
+        for (Point2D p : sorted.range(new RectHV(10, 0, 19, 1))) {
+            count++;
+        }
+        assert (count == 10);
+
+        kd.draw();
+    }
+
+}
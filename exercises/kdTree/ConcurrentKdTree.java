@@ -0,0 +1,499 @@
+
+import edu.princeton.cs.algs4.RectHV;
+import edu.princeton.cs.algs4.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * 2d-tree that can be shared between one or more writers and any number of
+ * readers. The nodes are immutable: insert copies the path from the root to
+ * the new node (every other subtree is shared with the old tree) and then
+ * publishes the new root in one volatile write. Queries read the current
+ * version once and run on it without locks, so each query sees a
+ * consistent tree, even while inserts continue. Inserts are serialized.
+ *
+ * Splits the same way as KdTree (see KdTree.compare), and stays balanced the same
+ * way: an insert that ends up too deep rebuilds the scapegoat subtree, from
+ * new nodes, so sorted or clustered feeds don't turn the tree into a list
+ * that every insert has to copy.
+ *
+ * @author devin
+ */
+public class ConcurrentKdTree {
+
+    private static final class Node {
+
+        private final Point2D point;
+        private final RectHV rectangle;
+        private final Node leftSubtree;
+        private final Node rightSubtree;
+
+        public Node(Point2D point, RectHV rectangle, Node leftSubtree, Node rightSubtree) {
+            this.point = point;
+            this.rectangle = rectangle;
+            this.leftSubtree = leftSubtree;
+            this.rightSubtree = rightSubtree;
+        }
+
+        @Override
+        public String toString() {
+            return "point=" + point + ", rect=" + rectangle;
+        }
+    }
+
+    /**
+     * A root, the size of its tree and the bounding box of its points,
+     * published together.
+     */
+    private static final class Version {
+
+        private final Node root;
+        private final int size;
+        private final double xmin;
+        private final double ymin;
+        private final double xmax;
+        private final double ymax;
+
+        public Version(Node root, int size, double xmin, double ymin, double xmax, double ymax) {
+            this.root = root;
+            this.size = size;
+            this.xmin = xmin;
+            this.ymin = ymin;
+            this.xmax = xmax;
+            this.ymax = ymax;
+        }
+
+        /**
+         * This version with one more point.
+         *
+         * @param root
+         * @param p
+         * @return
+         */
+        public Version add(Node root, Point2D p) {
+            return new Version(root, size + 1,
+                    Math.min(xmin, p.x()), Math.min(ymin, p.y()),
+                    Math.max(xmax, p.x()), Math.max(ymax, p.y()));
+        }
+
+        /**
+         * Squared distance from p to the cell of n clipped to the bounding
+         * box, see KdTree.cellDistanceSquared.
+         *
+         * @param n
+         * @param p
+         * @return
+         */
+        public double cellDistanceSquared(Node n, Point2D p) {
+            RectHV r = n.rectangle;
+            double dx = 0;
+            double dy = 0;
+            if (p.x() < Math.max(r.xmin(), xmin)) {
+                dx = p.x() - Math.max(r.xmin(), xmin);
+            } else if (p.x() > Math.min(r.xmax(), xmax)) {
+                dx = p.x() - Math.min(r.xmax(), xmax);
+            }
+            if (p.y() < Math.max(r.ymin(), ymin)) {
+                dy = p.y() - Math.max(r.ymin(), ymin);
+            } else if (p.y() > Math.min(r.ymax(), ymax)) {
+                dy = p.y() - Math.min(r.ymax(), ymax);
+            }
+            return dx * dx + dy * dy;
+        }
+    }
+
+    // scapegoat balance, see KdTree.ALPHA
+    private static final double ALPHA = 0.7;
+    private static final double LOG_INVERSE_ALPHA = Math.log(1 / ALPHA);
+
+    // the root cell is the whole plane, like KdTree without a domain
+    private static final RectHV PLANE = new RectHV(-Double.MAX_VALUE, -Double.MAX_VALUE,
+            Double.MAX_VALUE, Double.MAX_VALUE);
+
+    private volatile Version version = new Version(null, 0,
+            Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+
+    public ConcurrentKdTree() {
+        // construct an empty set of points
+    }
+
+    public boolean isEmpty() {
+        // is the set empty?
+        return version.root == null;
+    }
+
+    public int size() {
+        // number of points in the set
+        return version.size;
+    }
+
+    /**
+     * Add the point to the set (if it is not already in the set). Readers
+     * keep using the old tree until the new root is published.
+     *
+     * @param p
+     */
+    public synchronized void insert(Point2D p) {
+
+        if (p == null) {
+            throw new IllegalArgumentException();
+        }
+
+        Version current = version;
+        if (current.root == null) {
+            version = current.add(new Node(p, PLANE, null, null), p);
+            return;
+        }
+
+        //walk down to the parent of the new node, remembering the path
+        Node[] path = new Node[32];
+        boolean[] wentLeft = new boolean[32];
+        int depth = 0;
+
+        Node n = current.root;
+        boolean vertical = true;
+        while (n != null) {
+            if (p.equals(n.point)) {
+                return; //dupe
+            }
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, 2 * depth);
+                wentLeft = Arrays.copyOf(wentLeft, 2 * depth);
+            }
+            boolean goLeft = comparePoints(p, n.point, vertical);
+            path[depth] = n;
+            wentLeft[depth++] = goLeft;
+            n = goLeft ? n.leftSubtree : n.rightSubtree;
+            vertical = !vertical;
+        }
+
+        //new leaf, its rectangle is the parent's cut at the parent's line
+        Node parent = path[depth - 1];
+        boolean parentVertical = (depth - 1) % 2 == 0;
+        Node copy = new Node(p, wentLeft[depth - 1]
+                ? leftRectangle(parent.rectangle, parent.point, parentVertical)
+                : rightRectangle(parent.rectangle, parent.point, parentVertical), null, null);
+
+        //too deep: replace the lowest node out of balance on the path (there
+        //is one) by a balanced subtree of its points and p, like
+        //KdTree.rebuildScapegoat
+        int copyFrom = depth;
+        if (depth > Math.log(current.size + 1) / LOG_INVERSE_ALPHA) {
+            int childSize = 1; //the new leaf
+            for (int i = depth - 1; i >= 0; i--) {
+                Node old = path[i];
+                Node sibling = wentLeft[i] ? old.rightSubtree : old.leftSubtree;
+                int nodeSize = childSize + subtreeSize(sibling) + 1;
+
+                if (childSize > ALPHA * nodeSize) {
+                    Point2D[] points = new Point2D[nodeSize];
+                    points[collectPoints(old, points, 0)] = p;
+                    copy = build(points, 0, nodeSize, i % 2 == 0, old.rectangle);
+                    copyFrom = i;
+                    break;
+                }
+                childSize = nodeSize;
+            }
+        }
+
+        //copy the path above the new subtree bottom up
+        for (int i = copyFrom - 1; i >= 0; i--) {
+            Node old = path[i];
+            copy = wentLeft[i]
+                    ? new Node(old.point, old.rectangle, copy, old.rightSubtree)
+                    : new Node(old.point, old.rectangle, old.leftSubtree, copy);
+        }
+
+        version = current.add(copy, p);
+    }
+
+    /**
+     * Balanced subtree of points[lo, hi) with median splits, same as
+     * KdTree.buildNode.
+     *
+     * @param points
+     * @param lo
+     * @param hi
+     * @param vertical
+     * @param rectangle
+     * @return
+     */
+    private static Node build(Point2D[] points, int lo, int hi, boolean vertical, RectHV rectangle) {
+
+        if (lo >= hi) {
+            return null;
+        }
+
+        int median = KdTree.selectMedian(points, lo, hi, vertical);
+        Point2D point = points[median];
+        return new Node(point, rectangle,
+                build(points, lo, median, !vertical, leftRectangle(rectangle, point, vertical)),
+                build(points, median + 1, hi, !vertical, rightRectangle(rectangle, point, vertical)));
+    }
+
+    private static RectHV leftRectangle(RectHV r, Point2D split, boolean vertical) {
+        return vertical
+                ? new RectHV(r.xmin(), r.ymin(), split.x(), r.ymax())
+                : new RectHV(r.xmin(), r.ymin(), r.xmax(), split.y());
+    }
+
+    private static RectHV rightRectangle(RectHV r, Point2D split, boolean vertical) {
+        return vertical
+                ? new RectHV(split.x(), r.ymin(), r.xmax(), r.ymax())
+                : new RectHV(r.xmin(), split.y(), r.xmax(), r.ymax());
+    }
+
+    /**
+     * Recursive function, copy the points of a subtree into an array.
+     *
+     * @param n
+     * @param points
+     * @param count points already in the array
+     * @return points in the array now
+     */
+    private static int collectPoints(Node n, Point2D[] points, int count) {
+        if (n == null) {
+            return count;
+        }
+        points[count++] = n.point;
+        count = collectPoints(n.leftSubtree, points, count);
+        return collectPoints(n.rightSubtree, points, count);
+    }
+
+    private static int subtreeSize(Node n) {
+        if (n == null) {
+            return 0;
+        }
+        return 1 + subtreeSize(n.leftSubtree) + subtreeSize(n.rightSubtree);
+    }
+
+    /**
+     * Same as KdTree.comparePoints.
+     *
+     * @param p1
+     * @param p2
+     * @param vertical
+     * @return if true go left, if false go right
+     */
+    private static boolean comparePoints(Point2D p1, Point2D p2, boolean vertical) {
+        return KdTree.compare(p1.x(), p1.y(), p2.x(), p2.y(), vertical) <= 0;
+    }
+
+    public boolean contains(Point2D p) {
+        // does the set contain point p?
+        if (p == null) {
+            throw new IllegalArgumentException();
+        }
+
+        Node n = version.root;
+        boolean vertical = true;
+        while (n != null) {
+            if (p.equals(n.point)) {
+                return true;
+            }
+            n = comparePoints(p, n.point, vertical) ? n.leftSubtree : n.rightSubtree;
+            vertical = !vertical;
+        }
+        return false;
+    }
+
+    public Iterable<Point2D> range(RectHV rect) {
+
+        if (rect == null) {
+            throw new IllegalArgumentException();
+        }
+        ArrayList<Point2D> rangePoints = new ArrayList<>();
+        range(rect, rangePoints::add, version.root);
+        return rangePoints;
+    }
+
+    /**
+     * Hand every point inside the rectangle (or on the boundary) to the
+     * consumer.
+     *
+     * @param rect
+     * @param consumer
+     */
+    public void range(RectHV rect, Consumer<Point2D> consumer) {
+
+        if (rect == null || consumer == null) {
+            throw new IllegalArgumentException();
+        }
+        range(rect, consumer, version.root);
+    }
+
+    /**
+     * Same walk as KdTree.range, without recursion: pending subtrees and
+     * their orientation are kept on a stack like in nearest.
+     *
+     * @param rect
+     * @param consumer
+     * @param root
+     */
+    private static void range(RectHV rect, Consumer<Point2D> consumer, Node root) {
+
+        if (root == null) {
+            return;
+        }
+
+        Node[] stack = new Node[64];
+        boolean[] verticals = new boolean[64];
+        int top = 0;
+        stack[top] = root;
+        verticals[top++] = true;
+
+        while (top > 0) {
+            Node n = stack[--top];
+            boolean vertical = verticals[top];
+
+            Point2D point = n.point;
+            if (rect.contains(point)) {
+                consumer.accept(point);
+            }
+
+            if (top + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+                verticals = Arrays.copyOf(verticals, 2 * verticals.length);
+            }
+
+            //right pushed first, so the left subtree comes out first as before
+            if (n.rightSubtree != null
+                    && KdTree.compare(rect.xmax(), rect.ymax(), point.x(), point.y(), vertical) > 0) {
+                stack[top] = n.rightSubtree;
+                verticals[top++] = !vertical;
+            }
+            if (n.leftSubtree != null
+                    && KdTree.compare(rect.xmin(), rect.ymin(), point.x(), point.y(), vertical) < 0) {
+                stack[top] = n.leftSubtree;
+                verticals[top++] = !vertical;
+            }
+        }
+    }
+
+    public Point2D nearest(Point2D p) {
+        // a nearest neighbor in the set to point p; null if the set is empty
+        if (p == null) {
+            throw new IllegalArgumentException();
+        }
+
+        Version current = version;
+        Node root = current.root;
+        if (root == null) {
+            return null;
+        }
+
+        //same search as KdTree.nearestNode
+        Node[] stack = new Node[64];
+        boolean[] verticals = new boolean[64];
+        int top = 0;
+        stack[top] = root;
+        verticals[top++] = true;
+
+        Node best = root;
+        double bestDistance = root.point.distanceSquaredTo(p);
+
+        while (top > 0) {
+            Node n = stack[--top];
+            boolean vertical = verticals[top];
+
+            if (current.cellDistanceSquared(n, p) >= bestDistance) {
+                continue;
+            }
+
+            double distance = n.point.distanceSquaredTo(p);
+            if (distance < bestDistance) {
+                best = n;
+                bestDistance = distance;
+            }
+
+            if (top + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+                verticals = Arrays.copyOf(verticals, 2 * verticals.length);
+            }
+
+            boolean nearLeft = comparePoints(p, n.point, vertical);
+            Node near = nearLeft ? n.leftSubtree : n.rightSubtree;
+            Node far = nearLeft ? n.rightSubtree : n.leftSubtree;
+            if (far != null) {
+                stack[top] = far;
+                verticals[top++] = !vertical;
+            }
+            if (near != null) {
+                stack[top] = near;
+                verticals[top++] = !vertical;
+            }
+        }
+
+        return best.point;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // unit testing of the methods (optional)
+        ConcurrentKdTree kd = new ConcurrentKdTree();
+
+        assert (kd.size() == 0);
+        assert (kd.isEmpty());
+        assert (kd.nearest(new Point2D(1, 1)) == null);
+
+        kd.insert(new Point2D(0.7, 0.2));
+        kd.insert(new Point2D(0.7, 0.2));
+        kd.insert(new Point2D(0.5, 0.4));
+        kd.insert(new Point2D(0.2, 0.3));
+        kd.insert(new Point2D(0.4, 0.7));
+        kd.insert(new Point2D(0.9, 0.6));
+        assert (kd.size() == 5);
+        assert (kd.contains(new Point2D(0.2, 0.3)));
+        assert (!kd.contains(new Point2D(0, 0)));
+        assert (kd.nearest(new Point2D(0.633, 0.78)).equals(new Point2D(0.4, 0.7)));
+
+        int count = 0;
+        for (Point2D p : kd.range(new RectHV(0.3, 0.3, 1, 1))) {
+            count++;
+        }
+        assert (count == 3);
+
+        //a reader never sees a point without the ones inserted before it
+        ConcurrentKdTree shared = new ConcurrentKdTree();
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= 10000; i++) {
+                shared.insert(new Point2D(i / 10000.0, (i * 7919 % 10000) / 10000.0));
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            int size = shared.size();
+            for (int i = 1; i <= size; i++) {
+                assert (shared.contains(new Point2D(i / 10000.0, (i * 7919 % 10000) / 10000.0)));
+            }
+        }
+        writer.join();
+        assert (shared.size() == 10000);
+
+        //sorted inserts stay balanced, each copies a short path, also
+        //when the points share a y
+        for (boolean collinear : new boolean[] {false, true}) {
+            ConcurrentKdTree sorted = new ConcurrentKdTree();
+            int n = 100000;
+            for (int i = 0; i < n; i++) {
+                sorted.insert(new Point2D(i, collinear ? 50 : i % 100));
+            }
+            assert (sorted.size() == n);
+            assert (sorted.contains(new Point2D(n - 1, collinear ? 50 : (n - 1) % 100)));
+            assert (sorted.nearest(new Point2D(54321.4, 20.9))
+                    .equals(new Point2D(54321, collinear ? 50 : 21)));
+            count = 0;
+            for (Point2D p : sorted.range(new RectHV(-1, -1, n, 100))) {
+                count++;
+            }
+            assert (count == n);
+            count = 0;
+            for (Point2D p : sorted.range(new RectHV(10, 0, 19, 50))) {
+                count++;
+            }
+            assert (count == 10);
+        }
+    }
+
+}
@@ -2,7 +2,19 @@
 import edu.princeton.cs.algs4.RectHV;
 import edu.princeton.cs.algs4.Point2D;
 import edu.princeton.cs.algs4.StdDraw;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 
 /**
  * http://coursera.cs.princeton.edu/algs4/assignments/kdtree.html
@@ -14,6 +26,7 @@ public class KdTree {
     private static class Node {
 
         private final Point2D point;
+        private boolean deleted = false; // tombstone, the node still splits
         private final RectHV rectangle;
         private Node leftSubtree = null;
         private Node rightSubtree = null;
@@ -56,15 +69,277 @@ public class KdTree {
     private Node root;
     private int size;
 
+    // cell of the root. The cell of every other node is cut from its
+    // parent's at the parent's line, so every point has to be inside the
+    // root cell. By default that is the whole plane, and the searches clip
+    // the cells to the bounding box of the points inserted so far, which
+    // grows as needed. A fixed domain rejects points outside it.
+    private static final RectHV PLANE = new RectHV(-Double.MAX_VALUE, -Double.MAX_VALUE,
+            Double.MAX_VALUE, Double.MAX_VALUE);
+    private final RectHV domain;
+    private double xmin = Double.POSITIVE_INFINITY;
+    private double ymin = Double.POSITIVE_INFINITY;
+    private double xmax = Double.NEGATIVE_INFINITY;
+    private double ymax = Double.NEGATIVE_INFINITY;
+
+    // subtrees with fewer points than this are built on the calling thread
+    private static final int BUILD_PARALLEL_THRESHOLD = 8192;
+
+    // deleted points stay in the tree as tombstones, so nodes counts them
+    // as well as the size points. Scapegoat balance: a node is out of
+    // balance if one of its subtrees holds more than ALPHA of its nodes. An
+    // insert deeper than log(nodes) / log(1 / ALPHA) rebuilds the lowest
+    // such node on its path, and the whole tree is rebuilt once tombstones
+    // make up more than 1 - ALPHA of the nodes. Rebuilding drops the
+    // tombstones.
+    private static final double ALPHA = 0.7;
+    private static final double LOG_INVERSE_ALPHA = Math.log(1 / ALPHA);
+    private int nodes;
+
     public KdTree() {
         // construct an empty set of points
+        this(PLANE);
+    }
+
+    /**
+     * Construct an empty set of points that only takes points inside the
+     * domain (or on the boundary).
+     *
+     * @param domain
+     */
+    public KdTree(RectHV domain) {
+        if (domain == null) {
+            throw new IllegalArgumentException();
+        }
+        this.domain = domain;
         root = null;
         size = 0;
     }
 
+    /**
+     * Grow the bounding box of the points to take in p.
+     *
+     * @param p
+     */
+    private void extendBounds(Point2D p) {
+        xmin = Math.min(xmin, p.x());
+        ymin = Math.min(ymin, p.y());
+        xmax = Math.max(xmax, p.x());
+        ymax = Math.max(ymax, p.y());
+    }
+
+    /**
+     * Squared distance from p to the cell of n, clipped to the bounding box
+     * of the points. Every point below n is in there, so nothing below n is
+     * nearer than this.
+     *
+     * @param n
+     * @param p
+     * @return
+     */
+    private double cellDistanceSquared(Node n, Point2D p) {
+        return cellDistanceSquared(n, p.x(), p.y());
+    }
+
+    private double cellDistanceSquared(Node n, double px, double py) {
+        RectHV r = n.getRectHV();
+        double dx = 0;
+        double dy = 0;
+        if (px < Math.max(r.xmin(), xmin)) {
+            dx = px - Math.max(r.xmin(), xmin);
+        } else if (px > Math.min(r.xmax(), xmax)) {
+            dx = px - Math.min(r.xmax(), xmax);
+        }
+        if (py < Math.max(r.ymin(), ymin)) {
+            dy = py - Math.max(r.ymin(), ymin);
+        } else if (py > Math.min(r.ymax(), ymax)) {
+            dy = py - Math.min(r.ymax(), ymax);
+        }
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Build a balanced tree from an array of points (duplicates are dropped,
+     * the array is not changed). Every node splits its points on the median,
+     * so the depth is about log2(n) whatever the input order, where inserting
+     * sorted points one by one gives a tree as deep as the number of points.
+     * Points are ordered like in insert (see compare), so points sharing a
+     * coordinate are split in half too.
+     *
+     * Large builds are split over the common fork/join pool.
+     *
+     * @param points
+     * @return
+     */
+    public static KdTree build(Point2D[] points) {
+
+        if (points == null) {
+            throw new IllegalArgumentException();
+        }
+
+        Point2D[] unique = points.clone();
+        for (Point2D p : unique) {
+            if (p == null) {
+                throw new IllegalArgumentException();
+            }
+        }
+
+        //sort to drop the duplicates
+        if (unique.length > BUILD_PARALLEL_THRESHOLD) {
+            Arrays.parallelSort(unique);
+        } else {
+            Arrays.sort(unique);
+        }
+        int n = 0;
+        for (int i = 0; i < unique.length; i++) {
+            if (n == 0 || !unique[i].equals(unique[n - 1])) {
+                unique[n++] = unique[i];
+            }
+        }
+
+        KdTree kd = new KdTree();
+        for (int i = 0; i < n; i++) {
+            kd.extendBounds(unique[i]);
+        }
+        kd.root = ForkJoinPool.commonPool().invoke(
+                new BuildTask(unique, 0, n, true, kd.domain));
+        kd.size = n;
+        kd.nodes = n;
+        return kd;
+    }
+
+    /**
+     * Build the subtree for points[lo, hi), splitting off the two halves as
+     * separate tasks while they are large.
+     */
+    private static class BuildTask extends RecursiveTask<Node> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Point2D[] points;
+        private final int lo;
+        private final int hi;
+        private final boolean vertical;
+        private final RectHV rectangle;
+
+        public BuildTask(Point2D[] points, int lo, int hi, boolean vertical, RectHV rectangle) {
+            this.points = points;
+            this.lo = lo;
+            this.hi = hi;
+            this.vertical = vertical;
+            this.rectangle = rectangle;
+        }
+
+        @Override
+        protected Node compute() {
+            if (hi - lo <= BUILD_PARALLEL_THRESHOLD) {
+                return buildNode(points, lo, hi, vertical, rectangle);
+            }
+
+            int median = selectMedian(points, lo, hi, vertical);
+            Node n = new Node(points[median], rectangle);
+            BuildTask left = new BuildTask(points, lo, median, !vertical,
+                    leftRectangle(n, vertical));
+            BuildTask right = new BuildTask(points, median + 1, hi, !vertical,
+                    rightRectangle(n, vertical));
+            left.fork();
+            n.setRightSubtree(right.compute());
+            n.setLeftSubtree(left.join());
+            return n;
+        }
+    }
+
+    /**
+     * Recursively build the subtree for points[lo, hi).
+     *
+     * @param points
+     * @param lo
+     * @param hi
+     * @param vertical
+     * @param rectangle
+     * @return root of the subtree, null if there are no points
+     */
+    private static Node buildNode(Point2D[] points, int lo, int hi, boolean vertical, RectHV rectangle) {
+
+        if (lo >= hi) {
+            return null;
+        }
+
+        int median = selectMedian(points, lo, hi, vertical);
+        Node n = new Node(points[median], rectangle);
+        n.setLeftSubtree(buildNode(points, lo, median, !vertical, leftRectangle(n, vertical)));
+        n.setRightSubtree(buildNode(points, median + 1, hi, !vertical, rightRectangle(n, vertical)));
+        return n;
+    }
+
+    private static RectHV leftRectangle(Node n, boolean vertical) {
+        RectHV r = n.getRectHV();
+        return vertical
+                ? new RectHV(r.xmin(), r.ymin(), n.point.x(), r.ymax())
+                : new RectHV(r.xmin(), r.ymin(), r.xmax(), n.point.y());
+    }
+
+    private static RectHV rightRectangle(Node n, boolean vertical) {
+        RectHV r = n.getRectHV();
+        return vertical
+                ? new RectHV(n.point.x(), r.ymin(), r.xmax(), r.ymax())
+                : new RectHV(r.xmin(), n.point.y(), r.xmax(), r.ymax());
+    }
+
+    /**
+     * Quickselect (nth_element) with a three way partition around a random
+     * pivot, in expected linear time. Afterwards points[lo, m) come before
+     * the median and points(m, hi) after it in the order of compare, like
+     * insert. The points must be distinct, so m is the middle index.
+     *
+     * @param points
+     * @param lo
+     * @param hi
+     * @param vertical
+     * @return index of the median
+     */
+    static int selectMedian(Point2D[] points, int lo, int hi, boolean vertical) {
+
+        int k = lo + (hi - lo) / 2;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        while (true) {
+            Point2D pivot = points[lo + random.nextInt(hi - lo)];
+
+            //points[lo, lt) < pivot, points[lt, i) == pivot, points(gt, hi) > pivot
+            int lt = lo;
+            int gt = hi - 1;
+            int i = lo;
+            while (i <= gt) {
+                int cmp = compare(points[i].x(), points[i].y(), pivot.x(), pivot.y(), vertical);
+                if (cmp < 0) {
+                    swap(points, lt++, i++);
+                } else if (cmp > 0) {
+                    swap(points, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+
+            if (k < lt) {
+                hi = lt;
+            } else if (k > gt) {
+                lo = gt + 1;
+            } else {
+                return gt;
+            }
+        }
+    }
+
+    private static void swap(Point2D[] points, int i, int j) {
+        Point2D p = points[i];
+        points[i] = points[j];
+        points[j] = p;
+    }
+
     public boolean isEmpty() {
         // is the set empty? 
-        return root == null;
+        return size == 0;
     }
 
     public int size() {
@@ -74,86 +349,214 @@ public class KdTree {
 
     public void insert(Point2D p) {
         // add the point to the set (if it is not already in the set)
-        if (p == null) {
+        if (p == null || !domain.contains(p)) {
             throw new IllegalArgumentException();
         }
 
         if (root == null) {
-            root = new Node(p, new RectHV(0, 0, 1, 1));
+            root = new Node(p, domain);
+            extendBounds(p);
             size++;
+            nodes++;
+            return;
+        }
+
+        //walk down to the parent of the new node, remembering the path
+        Node[] path = new Node[32];
+        boolean[] wentLeft = new boolean[32];
+        int depth = 0;
+
+        Node n = root;
+        boolean vertical = true;
+        while (n != null) {
+            if (p.equals(n.getPoint())) {
+                if (n.deleted) {
+                    n.deleted = false;
+                    size++;
+                }
+                return; //dupe
+            }
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, 2 * depth);
+                wentLeft = Arrays.copyOf(wentLeft, 2 * depth);
+            }
+            boolean goLeft = comparePoints(p, n.getPoint(), vertical);
+            path[depth] = n;
+            wentLeft[depth++] = goLeft;
+            n = goLeft ? n.getLeftSubtree() : n.getRightSubtree();
+            vertical = !vertical;
+        }
+
+        //the parent's rectangle cut at the parent's line
+        Node parent = path[depth - 1];
+        boolean parentVertical = (depth - 1) % 2 == 0;
+        if (wentLeft[depth - 1]) {
+            parent.setLeftSubtree(new Node(p, leftRectangle(parent, parentVertical)));
         } else {
-            boolean inserted = insertNode(p, root, true); //recursive here
-            if (inserted) {
-                size++;
+            parent.setRightSubtree(new Node(p, rightRectangle(parent, parentVertical)));
+        }
+        extendBounds(p);
+        size++;
+        nodes++;
+
+        if (depth > Math.log(nodes) / LOG_INVERSE_ALPHA) {
+            rebuildScapegoat(path, wentLeft, depth);
+        }
+    }
+
+    /**
+     * Find the lowest node on the path to a new leaf that is out of balance
+     * (see ALPHA) and rebuild its subtree with median splits. The leaf is
+     * too deep, so there is one.
+     *
+     * @param path nodes from the root to the parent of the new leaf
+     * @param wentLeft which way the path went at each node
+     * @param depth number of nodes on the path
+     */
+    private void rebuildScapegoat(Node[] path, boolean[] wentLeft, int depth) {
+
+        int childSize = 1; //the new leaf
+        for (int i = depth - 1; i >= 0; i--) {
+            Node n = path[i];
+            Node sibling = wentLeft[i] ? n.getRightSubtree() : n.getLeftSubtree();
+            int nodeSize = childSize + subtreeSize(sibling) + 1;
+
+            if (childSize > ALPHA * nodeSize) {
+                Node rebuilt = rebuild(n, i % 2 == 0, nodeSize);
+                if (i == 0) {
+                    root = rebuilt;
+                } else if (wentLeft[i - 1]) {
+                    path[i - 1].setLeftSubtree(rebuilt);
+                } else {
+                    path[i - 1].setRightSubtree(rebuilt);
+                }
+                return;
             }
+            childSize = nodeSize;
         }
     }
 
     /**
-     * This function is recursive.
+     * Rebuild a subtree from its points with median splits, dropping its
+     * tombstones. It keeps the rectangle of its root.
      *
-     * @param point
-     * @param parent
+     * @param n
      * @param vertical
+     * @param nodeSize number of nodes in the subtree
+     * @return the new root of the subtree, null if all its points are deleted
      */
-    private boolean insertNode(Point2D point, Node parent, boolean vertical) {
+    private Node rebuild(Node n, boolean vertical, int nodeSize) {
 
-        if (point.equals(parent.getPoint())) {
-            return false;
+        Point2D[] points = new Point2D[nodeSize];
+        int count = collectPoints(n, points, 0);
+        nodes -= nodeSize - count;
+
+        if (count > BUILD_PARALLEL_THRESHOLD) {
+            return ForkJoinPool.commonPool().invoke(
+                    new BuildTask(points, 0, count, vertical, n.getRectHV()));
         }
+        return buildNode(points, 0, count, vertical, n.getRectHV());
+    }
 
-        //compare x coordinates
-        //(if the point to be inserted has a smaller x-coordinate 
-        //than the point at the root, go left; otherwise go right);
-        //compare y coordinates
-        //(if the point to be inserted has a smaller y-coordinate 
-        //than the point in the node, go left; otherwise go right);
-        //vertical == true means the point is represented by a vertical line and x should be used for comparison
-        boolean goLeft = comparePoints(point, parent.getPoint(), vertical);
+    /**
+     * Copy the points of a subtree that are not deleted into an array, in
+     * preorder. Walks with a stack of pending subtrees, the subtree may be
+     * deep.
+     *
+     * @param n
+     * @param points
+     * @param count points already in the array
+     * @return points in the array now
+     */
+    private static int collectPoints(Node n, Point2D[] points, int count) {
+        Node[] stack = new Node[64];
+        int top = 0;
+        if (n != null) {
+            stack[top++] = n;
+        }
+        while (top > 0) {
+            n = stack[--top];
+            if (!n.deleted) {
+                points[count++] = n.getPoint();
+            }
+            if (top + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+            }
+            if (n.getRightSubtree() != null) {
+                stack[top++] = n.getRightSubtree();
+            }
+            if (n.getLeftSubtree() != null) {
+                stack[top++] = n.getLeftSubtree();
+            }
+        }
+        return count;
+    }
 
-        Node n = goLeft ? parent.getLeftSubtree() : parent.getRightSubtree();
-        if (n == null) {
+    /**
+     * Number of nodes in a subtree, tombstones included. Walks with a stack
+     * like collectPoints.
+     *
+     * @param n
+     * @return
+     */
+    private static int subtreeSize(Node n) {
+        Node[] stack = new Node[64];
+        int top = 0;
+        int count = 0;
+        if (n != null) {
+            stack[top++] = n;
+        }
+        while (top > 0) {
+            n = stack[--top];
+            count++;
+            if (top + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+            }
+            if (n.getLeftSubtree() != null) {
+                stack[top++] = n.getLeftSubtree();
+            }
+            if (n.getRightSubtree() != null) {
+                stack[top++] = n.getRightSubtree();
+            }
+        }
+        return count;
+    }
 
-            RectHV parentRect = parent.getRectHV();
+    /**
+     * Remove the point from the set (if it is in the set). The node stays
+     * as a tombstone: its line still splits the points below it, the queries
+     * just skip its point.
+     *
+     * @param p
+     */
+    public void delete(Point2D p) {
 
-            //new node
-            if (goLeft) {
-                Node newNode;
-                if (vertical) {
-                    //just compared vertical, want horizontal limits
-                    newNode = new Node(point,
-                            new RectHV(parentRect.xmin(), parentRect.ymin(), parent.point.x(), parentRect.ymax()));
-                } else {
-                    newNode = new Node(point,
-                            new RectHV(parentRect.xmin(), parentRect.ymin(), parentRect.xmax(), parent.point.y()));
-                }
-                parent.setLeftSubtree(newNode);
-                return true;
-            } else {
-                Node newNode;
-                if (vertical) {
-                    //just compared vertical, want horizontal limits
-                    newNode = new Node(point,
-                            new RectHV(parent.point.x(), parentRect.ymin(), parentRect.xmax(), parentRect.ymax()));
-                } else {
-                    newNode = new Node(point,
-                            new RectHV(parentRect.xmin(), parent.point.y(), parentRect.xmax(), parentRect.ymax()));
-                }
-                parent.setRightSubtree(newNode);
-                return true;
-            }
-        } else {
-            return insertNode(point, n, !vertical);
+        if (p == null) {
+            throw new IllegalArgumentException();
+        }
+
+        Node n = root;
+        boolean vertical = true;
+        while (n != null && !p.equals(n.getPoint())) {
+            n = comparePoints(p, n.getPoint(), vertical) ? n.getLeftSubtree() : n.getRightSubtree();
+            vertical = !vertical;
         }
 
+        if (n == null || n.deleted) {
+            return;
+        }
+        n.deleted = true;
+        size--;
+
+        //too many tombstones slow the queries down, start over
+        if (size < ALPHA * nodes) {
+            root = rebuild(root, true, nodes);
+        }
     }
 
     /**
      * Helper method to compare points in the 2D tree given the node's current
-     * alignment.
-     *
-     * If vertical then compare the y coordinates, or horizon then compare the y
-     * coordinates.
+     * alignment, see compare.
      *
      * @param p1
      * @param p2
@@ -161,9 +564,30 @@ public class KdTree {
      * @return if true go left, if false go right
      */
     private boolean comparePoints(Point2D p1, Point2D p2, boolean vertical) {
-        return vertical
-                ? Double.compare(p1.x(), p2.x()) <= 0
-                : Double.compare(p1.y(), p2.y()) <= 0;
+        return compare(p1.x(), p1.y(), p2.x(), p2.y(), vertical) <= 0;
+    }
+
+    /**
+     * Order of two points at a node: by the splitting coordinate (x if
+     * vertical, y if not), then by the other one. Only equal points tie, so
+     * points on a splitting line are split too and a median rebuild always
+     * halves its points, even for grid data or rounded coordinates. Points
+     * before the node's point are in its left subtree, points after it in
+     * the right one. The other trees and the saved files use the same order.
+     *
+     * @param x1
+     * @param y1
+     * @param x2
+     * @param y2
+     * @param vertical
+     * @return negative, zero or positive, like Double.compare
+     */
+    static int compare(double x1, double y1, double x2, double y2, boolean vertical) {
+        int cmp = vertical ? Double.compare(x1, x2) : Double.compare(y1, y2);
+        if (cmp != 0) {
+            return cmp;
+        }
+        return vertical ? Double.compare(y1, y2) : Double.compare(x1, x2);
     }
 
     public boolean contains(Point2D p) {
@@ -172,37 +596,99 @@ public class KdTree {
             throw new IllegalArgumentException();
         }
 
-        if (root == null) {
-            return false;
-        } else {
-            return findPoint(p, root, true);
-        }
+        return findPoint(p);
     }
 
     /**
-     * Recursive function.
+     * Walk down to p.
      *
      * @param p
-     * @param n
-     * @param vertical
-     * @return
+     * @return true if p is in the tree and not deleted
      */
-    private boolean findPoint(Point2D p, Node n, boolean vertical) {
-        if (p.equals(n.getPoint())) {
-            return true;
-        } else {
-            //not equal, check subtrees
-            //which subtree should we check?
-            boolean goLeft = comparePoints(p, n.getPoint(), vertical);
-            Node toCheck = goLeft ? n.getLeftSubtree() : n.getRightSubtree();
-            if (toCheck == null) {
-                return false;
-            } else {
-                return findPoint(p, toCheck, !vertical);
+    private boolean findPoint(Point2D p) {
+        Node n = root;
+        boolean vertical = true;
+        while (n != null) {
+            if (p.equals(n.getPoint())) {
+                return !n.deleted;
             }
+            //not equal, which subtree should we check?
+            n = comparePoints(p, n.getPoint(), vertical) ? n.getLeftSubtree() : n.getRightSubtree();
+            vertical = !vertical;
+        }
+        return false;
+    }
+
+    /**
+     * Write the points to a file that MappedKdTree can query in place. The
+     * tree is written balanced (median splits like build, tombstones left
+     * out) and flat, in preorder:
+     *
+     *   header  int MAGIC, int number of nodes, 4 doubles bounding box
+     *           of the points (xmin, ymin, xmax, ymax), the root cell
+     *   node i  double x, double y, int left, int right (node index, -1 if
+     *           none), at HEADER_BYTES + i * NODE_BYTES
+     *
+     * The subtrees are split in the order of compare.
+     *
+     * All values are big endian.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+
+        Point2D[] points = new Point2D[nodes];
+        int count = collectPoints(root, points, 0);
+        //the bounding box of the points, the file's root cell
+        RectHV bounds = count > 0 ? new RectHV(xmin, ymin, xmax, ymax) : new RectHV(0, 0, 1, 1);
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MappedKdTree.MAGIC);
+            out.writeInt(count);
+            out.writeDouble(bounds.xmin());
+            out.writeDouble(bounds.ymin());
+            out.writeDouble(bounds.xmax());
+            out.writeDouble(bounds.ymax());
+            writeNodes(points, 0, count, true, 0, out);
         }
     }
 
+    /**
+     * Recursive function, write the balanced subtree for points[lo, hi) in
+     * preorder. Its left subtree starts right after it, its right subtree
+     * after the left one.
+     *
+     * @param points
+     * @param lo
+     * @param hi
+     * @param vertical
+     * @param index node index of the subtree root
+     * @param out
+     * @throws IOException
+     */
+    private static void writeNodes(Point2D[] points, int lo, int hi, boolean vertical,
+            int index, DataOutputStream out) throws IOException {
+
+        if (lo >= hi) {
+            return;
+        }
+
+        int median = selectMedian(points, lo, hi, vertical);
+        out.writeDouble(points[median].x());
+        out.writeDouble(points[median].y());
+        out.writeInt(lo < median ? index + 1 : -1);
+        out.writeInt(median + 1 < hi ? index + 1 + (median - lo) : -1);
+
+        writeNodes(points, lo, median, !vertical, index + 1, out);
+        writeNodes(points, median + 1, hi, !vertical, index + 1 + (median - lo), out);
+    }
+
     public void draw() {
         // draw all points to standard draw 
         drawNode(root, false);
@@ -224,17 +710,21 @@ public class KdTree {
             StdDraw.setPenColor(StdDraw.BLUE);
             StdDraw.setPenRadius(0.001);
             //y1 = y2
-            StdDraw.line(n.rectangle.xmin(), n.point.y(), n.rectangle.xmax(), n.point.y());
+            StdDraw.line(Math.max(n.rectangle.xmin(), xmin), n.point.y(),
+                    Math.min(n.rectangle.xmax(), xmax), n.point.y());
 
         } else {
             StdDraw.setPenColor(StdDraw.RED);
             StdDraw.setPenRadius(0.001);
-            StdDraw.line(n.point.x(), n.rectangle.ymin(), n.point.x(), n.rectangle.ymax());
+            StdDraw.line(n.point.x(), Math.max(n.rectangle.ymin(), ymin),
+                    n.point.x(), Math.min(n.rectangle.ymax(), ymax));
         }
 
         StdDraw.setPenColor(StdDraw.BLACK);
         StdDraw.setPenRadius(0.01);
-        n.getPoint().draw();
+        if (!n.deleted) {
+            n.getPoint().draw();
+        }
 
         if (n.getLeftSubtree() != null) {
             drawNode(n.getLeftSubtree(), !horizontal);
@@ -250,61 +740,94 @@ public class KdTree {
             throw new IllegalArgumentException();
         }
         ArrayList<Point2D> rangePoints = new ArrayList<>();
-        if (root == null) {
-            return rangePoints;
+        range(rect, rangePoints::add, root, true); //recursive call
+        return rangePoints;
+    }
+
+    /**
+     * Hand every point inside the rectangle (or on the boundary) to the
+     * consumer, without collecting them.
+     *
+     * @param rect
+     * @param consumer
+     */
+    public void range(RectHV rect, Consumer<Point2D> consumer) {
+
+        if (rect == null || consumer == null) {
+            throw new IllegalArgumentException();
         }
+        range(rect, consumer, root, true);
+    }
 
-        range(rect, rangePoints, root, true); //recursive call
-        return rangePoints;
+    /**
+     * Number of points inside the rectangle (or on the boundary).
+     *
+     * @param rect
+     * @return
+     */
+    public int rangeCount(RectHV rect) {
+
+        if (rect == null) {
+            throw new IllegalArgumentException();
+        }
+        return rangeCount(rect, root, true);
     }
 
-    private void range(RectHV rect, ArrayList<Point2D> rangePoints, Node toCheck, boolean vertical) {
+    /**
+     * Recursive function. The query rectangle is compared with the node's
+     * point directly: in the order of compare, every point of the rectangle
+     * is between its (xmin, ymin) and (xmax, ymax) corners, so the left
+     * subtree can only have points in it if the low corner comes before the
+     * node's point, the right subtree if the high corner comes after it.
+     *
+     * @param rect
+     * @param consumer
+     * @param toCheck
+     * @param vertical
+     */
+    private void range(RectHV rect, Consumer<Point2D> consumer, Node toCheck, boolean vertical) {
 
         if (toCheck == null) {
             return;
         }
 
-        if (rect.contains(toCheck.getPoint())) {
-            rangePoints.add(toCheck.getPoint());
+        Point2D point = toCheck.getPoint();
+        if (!toCheck.deleted && rect.contains(point)) {
+            consumer.accept(point);
         }
 
-        //construct line to check if split by query rectangle
-        RectHV rectToCheck = vertical
-                ? new RectHV(toCheck.getPoint().x(), toCheck.getRectHV().ymin(),
-                        toCheck.getPoint().x(), toCheck.getRectHV().ymax())
-                : new RectHV(toCheck.getRectHV().xmin(), toCheck.getPoint().y(),
-                        toCheck.getRectHV().xmax(), toCheck.getPoint().y());
+        if (compare(rect.xmin(), rect.ymin(), point.x(), point.y(), vertical) < 0) {
+            range(rect, consumer, toCheck.getLeftSubtree(), !vertical);
+        }
+        if (compare(rect.xmax(), rect.ymax(), point.x(), point.y(), vertical) > 0) {
+            range(rect, consumer, toCheck.getRightSubtree(), !vertical);
+        }
+    }
 
-        if (rect.intersects(rectToCheck)) {
-            //we have to check both
-            range(rect, rangePoints, toCheck.getLeftSubtree(), !vertical);
-            range(rect, rangePoints, toCheck.getRightSubtree(), !vertical);
+    /**
+     * Recursive function, same walk as range.
+     *
+     * @param rect
+     * @param toCheck
+     * @param vertical
+     * @return
+     */
+    private int rangeCount(RectHV rect, Node toCheck, boolean vertical) {
 
-        } else {
-            //not in the rectangle, which tree to check?
+        if (toCheck == null) {
+            return 0;
+        }
 
-            //if vertical check left or right to x coordinates
-            if (vertical) {
-                if (Double.compare(rect.xmax(), toCheck.getPoint().x()) < 0) {
-                    //go left
-                    range(rect, rangePoints, toCheck.getLeftSubtree(), !vertical);
-                } else {
-                    //xmax is greater
-                    //already check if intersects above so must be to right
-                    range(rect, rangePoints, toCheck.getRightSubtree(), !vertical);
-                }
-            } else {
-                //horizontal
-                if (Double.compare(rect.ymax(), toCheck.getPoint().y()) < 0) {
-                    //go left
-                    range(rect, rangePoints, toCheck.getLeftSubtree(), !vertical);
-                } else {
-                    //xmax is greater
-                    //already check if intersects above so must be to right
-                    range(rect, rangePoints, toCheck.getRightSubtree(), !vertical);
-                }
-            }
+        Point2D point = toCheck.getPoint();
+        int count = !toCheck.deleted && rect.contains(point) ? 1 : 0;
+
+        if (compare(rect.xmin(), rect.ymin(), point.x(), point.y(), vertical) < 0) {
+            count += rangeCount(rect, toCheck.getLeftSubtree(), !vertical);
         }
+        if (compare(rect.xmax(), rect.ymax(), point.x(), point.y(), vertical) > 0) {
+            count += rangeCount(rect, toCheck.getRightSubtree(), !vertical);
+        }
+        return count;
     }
 
     public Point2D nearest(Point2D p) {
@@ -317,51 +840,415 @@ public class KdTree {
             return null;
         }
 
-        Node currentNearest = null;
+        return nearestNode(p.x(), p.y(), new SearchStack()).getPoint();
+    }
+
+    /**
+     * nearest() with the caller's scratch space, for KdTreeBenchmark to
+     * count the nodes visited.
+     *
+     * @param p
+     * @param stack
+     * @return a nearest neighbor, null if the set is empty
+     */
+    Point2D nearest(Point2D p, SearchStack stack) {
+        return root == null ? null : nearestNode(p.x(), p.y(), stack).getPoint();
+    }
+
+    /**
+     * Scratch space of the nearest neighbour search: pending subtrees and
+     * their orientation, the top is searched next. Can be reused for any
+     * number of searches on one thread.
+     */
+    static class SearchStack {
+
+        private Node[] nodes = new Node[64];
+        private boolean[] verticals = new boolean[64];
+        private long visited = 0;
+
+        /**
+         * Nodes looked at by the searches that used this stack.
+         *
+         * @return
+         */
+        long visited() {
+            return visited;
+        }
+    }
+
+    /**
+     * Nearest neighbour search without recursion. The squared distance of
+     * the nearest point so far is kept, and at each node the subtree on the
+     * side of p is searched before the other one, so the best distance
+     * shrinks early and the far subtree is usually skipped when it is
+     * popped: a subtree is only searched if its rectangle is nearer than the
+     * best distance at that point.
+     *
+     * Takes the coordinates rather than a Point2D so nearestAll doesn't
+     * allocate one per query.
+     *
+     * @param px
+     * @param py
+     * @param stack scratch space, counts the nodes visited
+     * @return
+     */
+    private Node nearestNode(double px, double py, SearchStack stack) {
+
+        Node[] nodes = stack.nodes;
+        boolean[] verticals = stack.verticals;
+        int top = 0;
+        nodes[top] = root;
+        verticals[top++] = true;
+
+        Node best = null;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        long visited = 0;
+
+        while (top > 0) {
+            Node n = nodes[--top];
+            boolean vertical = verticals[top];
 
-        currentNearest = nearest(p, root, currentNearest);
+            if (best != null && cellDistanceSquared(n, px, py) >= bestDistance) {
+                continue; //can't have anything nearer
+            }
+            visited++;
+
+            //the first live point is taken whatever its distance, far away
+            //points can be infinitely far once the distance overflows
+            Point2D point = n.getPoint();
+            double dx = point.x() - px;
+            double dy = point.y() - py;
+            double distance = dx * dx + dy * dy;
+            if (!n.deleted && (best == null || distance < bestDistance)) {
+                best = n;
+                bestDistance = distance;
+            }
+
+            if (top + 2 > nodes.length) {
+                nodes = stack.nodes = Arrays.copyOf(nodes, 2 * nodes.length);
+                verticals = stack.verticals = Arrays.copyOf(verticals, 2 * verticals.length);
+            }
 
-        return currentNearest.getPoint();
+            //push the far side first so the near side is popped first
+            boolean nearLeft = compare(px, py, point.x(), point.y(), vertical) <= 0;
+            Node near = nearLeft ? n.getLeftSubtree() : n.getRightSubtree();
+            Node far = nearLeft ? n.getRightSubtree() : n.getLeftSubtree();
+            if (far != null) {
+                nodes[top] = far;
+                verticals[top++] = !vertical;
+            }
+            if (near != null) {
+                nodes[top] = near;
+                verticals[top++] = !vertical;
+            }
+        }
+
+        stack.visited += visited;
+        return best;
     }
 
-    private Node nearest(Point2D p, Node parent, Node currentNearest) {
+    // queries per leaf task of nearestAll
+    private static final int NEAREST_ALL_CHUNK = 1024;
+
+    /**
+     * Nearest neighbours of a batch of queries, out[i] is the point nearest
+     * to (qx[i], qy[i]) (null if the set is empty). The queries are ordered
+     * along a Morton (Z-order) curve over the bounding box first, so
+     * queries searched one after the other are close together and walk
+     * mostly the same, cache hot, nodes. The ordered queries are then split
+     * into chunks searched in parallel on the common fork/join pool. The
+     * tree must not be changed until this returns.
+     *
+     * @param qx
+     * @param qy
+     * @param out
+     */
+    public void nearestAll(double[] qx, double[] qy, Point2D[] out) {
 
-        if (parent == null) {
-            return currentNearest; //can't go any further down the tree
+        if (qx == null || qy == null || out == null
+                || qy.length != qx.length || out.length < qx.length) {
+            throw new IllegalArgumentException();
         }
 
-        //get the distance
-        double distance = parent.getPoint().distanceSquaredTo(p);
+        if (root == null) {
+            Arrays.fill(out, 0, qx.length, null);
+            return;
+        }
 
-        //should we keep checking this node?
-        
-        //check if we need to update for a new nearest
-        if (currentNearest == null) {
-            currentNearest = parent;
+        //Morton code in the high half, query index in the low half. The
+        //code has 30 bits so the sign bit stays clear and signed order is
+        //Z-order
+        long[] order = new long[qx.length];
+        for (int i = 0; i < qx.length; i++) {
+            long morton = morton(cell(qx[i], xmin, xmax), cell(qy[i], ymin, ymax));
+            order[i] = (morton << 32) | i;
         }
+        Arrays.parallelSort(order);
+
+        ForkJoinPool.commonPool().invoke(new NearestAllTask(qx, qy, out, order, 0, order.length));
+    }
 
-        //todo, cache this in a class so we don't have to keep recalculating?
-        double currentDistance = currentNearest.getPoint().distanceSquaredTo(p);
-        
-        if(Double.compare(distance, currentDistance) < 0) {
-            currentNearest = parent;
-            currentDistance = distance;
+    /**
+     * Search the queries order[lo, hi), splitting the range in half until it
+     * is no larger than NEAREST_ALL_CHUNK.
+     */
+    private class NearestAllTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double[] qx;
+        private final double[] qy;
+        private final Point2D[] out;
+        private final long[] order;
+        private final int lo;
+        private final int hi;
+
+        public NearestAllTask(double[] qx, double[] qy, Point2D[] out, long[] order, int lo, int hi) {
+            this.qx = qx;
+            this.qy = qy;
+            this.out = out;
+            this.order = order;
+            this.lo = lo;
+            this.hi = hi;
         }
-        
-        //should we keep exploring the subtrees?
-        if(parent.getLeftSubtree() != null) {
-            if(parent.getLeftSubtree().getRectHV().distanceSquaredTo(p) < currentDistance) {
-                currentNearest = nearest(p, parent.getLeftSubtree(), currentNearest);
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= NEAREST_ALL_CHUNK) {
+                SearchStack stack = new SearchStack();
+                for (int k = lo; k < hi; k++) {
+                    int i = (int) order[k];
+                    out[i] = nearestNode(qx[i], qy[i], stack).getPoint();
+                }
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new NearestAllTask(qx, qy, out, order, lo, mid),
+                        new NearestAllTask(qx, qy, out, order, mid, hi));
             }
         }
+    }
 
-        if(parent.getRightSubtree() != null) {
-            if(parent.getRightSubtree().getRectHV().distanceSquaredTo(p) < currentDistance) {
-                currentNearest = nearest(p, parent.getRightSubtree(), currentNearest);
+    /**
+     * Cell (0 - 32767) of a coordinate on a 15 bit grid over [min, max],
+     * clamped to the grid.
+     *
+     * @param v
+     * @param min
+     * @param max
+     * @return
+     */
+    private static int cell(double v, double min, double max) {
+        double t = max > min ? (v - min) / (max - min) : 0;
+        return (int) Math.max(0, Math.min(32767, t * 32768));
+    }
+
+    /**
+     * Interleave the bits of two 15 bit cells, x in the even bits.
+     *
+     * @param x
+     * @param y
+     * @return
+     */
+    private static long morton(int x, int y) {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    /**
+     * Spread the 15 low bits of v to the even bits of the result.
+     *
+     * @param v
+     * @return
+     */
+    private static long spread(int v) {
+        long x = v & 0x7FFF;
+        x = (x | (x << 8)) & 0x00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0FL;
+        x = (x | (x << 2)) & 0x33333333L;
+        x = (x | (x << 1)) & 0x55555555L;
+        return x;
+    }
+
+    /**
+     * The k points nearest to p, nearest first. Fewer than k if the set is
+     * smaller.
+     *
+     * @param p
+     * @param k
+     * @return
+     */
+    public Iterable<Point2D> nearest(Point2D p, int k) {
+
+        if (p == null || k < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        ArrayList<Point2D> nearestPoints = new ArrayList<>();
+        if (root == null || k == 0) {
+            return nearestPoints;
+        }
+
+        NearestHeap heap = new NearestHeap(Math.min(k, size));
+        nearest(p, root, true, heap);
+
+        //pop the farthest first, then reverse
+        while (heap.size > 0) {
+            nearestPoints.add(heap.nodes[0].getPoint());
+            heap.removeMax();
+        }
+        Collections.reverse(nearestPoints);
+        return nearestPoints;
+    }
+
+    /**
+     * Bounded max heap of the nearest nodes found so far, keyed on their
+     * squared distance. Allocated once per query.
+     */
+    private static class NearestHeap {
+
+        private final Node[] nodes;
+        private final double[] distances;
+        private int size = 0;
+
+        public NearestHeap(int capacity) {
+            nodes = new Node[capacity];
+            distances = new double[capacity];
+        }
+
+        public boolean isFull() {
+            return size == nodes.length;
+        }
+
+        /**
+         * Squared distance a node has to beat to get in.
+         *
+         * @return
+         */
+        public double bound() {
+            return isFull() ? distances[0] : Double.POSITIVE_INFINITY;
+        }
+
+        /**
+         * Add a node if there is room or it is nearer than the farthest one,
+         * which is then dropped.
+         *
+         * @param n
+         * @param distance
+         */
+        public void offer(Node n, double distance) {
+            if (!isFull()) {
+                //sift up from the new leaf
+                int i = size++;
+                while (i > 0 && distances[(i - 1) / 2] < distance) {
+                    nodes[i] = nodes[(i - 1) / 2];
+                    distances[i] = distances[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                nodes[i] = n;
+                distances[i] = distance;
+            } else if (distance < distances[0]) {
+                siftDown(n, distance);
+            }
+        }
+
+        public void removeMax() {
+            size--;
+            if (size > 0) {
+                siftDown(nodes[size], distances[size]);
+            }
+            nodes[size] = null;
+        }
+
+        /**
+         * Put a node at the top and sift it down to its place.
+         *
+         * @param n
+         * @param distance
+         */
+        private void siftDown(Node n, double distance) {
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && distances[child + 1] > distances[child]) {
+                    child++;
+                }
+                if (distances[child] <= distance) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                distances[i] = distances[child];
+                i = child;
             }
+            nodes[i] = n;
+            distances[i] = distance;
         }
-        
-        return currentNearest;
+    }
+
+    /**
+     * Recursive function. A subtree is skipped once its rectangle is no
+     * nearer than the k-th nearest point found so far, and the subtree on
+     * the side of p is searched first so the bound tightens sooner.
+     *
+     * @param p
+     * @param n
+     * @param vertical
+     * @param heap
+     */
+    private void nearest(Point2D p, Node n, boolean vertical, NearestHeap heap) {
+
+        //only prune once the heap is full, a cell or point can be
+        //infinitely far when the squared distance overflows
+        if (n == null || heap.isFull() && cellDistanceSquared(n, p) >= heap.bound()) {
+            return;
+        }
+
+        if (!n.deleted) {
+            heap.offer(n, n.getPoint().distanceSquaredTo(p));
+        }
+
+        boolean leftFirst = comparePoints(p, n.getPoint(), vertical);
+        nearest(p, leftFirst ? n.getLeftSubtree() : n.getRightSubtree(), !vertical, heap);
+        nearest(p, leftFirst ? n.getRightSubtree() : n.getLeftSubtree(), !vertical, heap);
+    }
+
+    /**
+     * All points within distance r of p (or on the circle).
+     *
+     * @param p
+     * @param r
+     * @return
+     */
+    public Iterable<Point2D> withinRadius(Point2D p, double r) {
+
+        if (p == null || !(r >= 0)) {
+            throw new IllegalArgumentException();
+        }
+
+        ArrayList<Point2D> radiusPoints = new ArrayList<>();
+        withinRadius(p, r * r, radiusPoints, root);
+        return radiusPoints;
+    }
+
+    /**
+     * Recursive function, skips the subtrees whose rectangle is farther
+     * than r from p.
+     *
+     * @param p
+     * @param radiusSquared
+     * @param radiusPoints
+     * @param n
+     */
+    private void withinRadius(Point2D p, double radiusSquared, ArrayList<Point2D> radiusPoints, Node n) {
+
+        if (n == null || cellDistanceSquared(n, p) > radiusSquared) {
+            return;
+        }
+
+        if (!n.deleted && n.getPoint().distanceSquaredTo(p) <= radiusSquared) {
+            radiusPoints.add(n.getPoint());
+        }
+
+        withinRadius(p, radiusSquared, radiusPoints, n.getLeftSubtree());
+        withinRadius(p, radiusSquared, radiusPoints, n.getRightSubtree());
     }
 
     public static void main(String[] args) {
@@ -422,7 +1309,136 @@ public class KdTree {
         assert (!kd.contains(new Point2D(1, 1)));
 
         assert(kd.nearest(new Point2D(0.633, 0.78)).equals(new Point2D(0.4, 0.7)));
-        
+
+        //squared distances overflow to infinity
+        KdTree huge = new KdTree();
+        huge.insert(new Point2D(1e200, 1e200));
+        huge.insert(new Point2D(-1e200, 1e200));
+        assert (huge.nearest(new Point2D(-1e200, -1e200)) != null);
+        Point2D[] far = new Point2D[1];
+        huge.nearestAll(new double[] {1e200}, new double[] {-1e200}, far);
+        assert (far[0] != null);
+        int count = 0;
+        for (Point2D p : huge.nearest(new Point2D(-1e200, -1e200), 2)) {
+            count++;
+        }
+        assert (count == 2);
+
+        //bulk load, sorted input with a dupe
+        KdTree built = KdTree.build(new Point2D[] {
+            new Point2D(0.1, 0.1), new Point2D(0.2, 0.2), new Point2D(0.3, 0.3),
+            new Point2D(0.4, 0.4), new Point2D(0.5, 0.5), new Point2D(0.5, 0.5)
+        });
+        assert (built.size() == 5);
+        assert (built.contains(new Point2D(0.4, 0.4)));
+        assert (!built.contains(new Point2D(0.4, 0.5)));
+        assert (built.nearest(new Point2D(0.29, 0.33)).equals(new Point2D(0.3, 0.3)));
+        built.insert(new Point2D(0.3, 0.3));
+        assert (built.size() == 5);
+
+        //k nearest and radius
+        ArrayList<Point2D> three = new ArrayList<>();
+        for (Point2D p : built.nearest(new Point2D(0.31, 0.31), 3)) {
+            three.add(p);
+        }
+        assert (three.size() == 3);
+        assert (three.get(0).equals(new Point2D(0.3, 0.3)));
+        assert (three.get(1).equals(new Point2D(0.4, 0.4)));
+        assert (three.get(2).equals(new Point2D(0.2, 0.2)));
+        assert (built.nearest(new Point2D(0.5, 0.5), 10).iterator().next().equals(new Point2D(0.5, 0.5)));
+
+        int inside = 0;
+        for (Point2D p : built.withinRadius(new Point2D(0.3, 0.3), 0.15)) {
+            assert (p.distanceTo(new Point2D(0.3, 0.3)) <= 0.15);
+            inside++;
+        }
+        assert (inside == 3);
+
+        //range without collecting
+        RectHV corner = new RectHV(0, 0, 0.35, 0.35);
+        assert (built.rangeCount(corner) == 3);
+        built.range(corner, p -> {
+            assert (corner.contains(p));
+        });
+
+        //batch nearest
+        Point2D[] found = new Point2D[3];
+        kd.nearestAll(new double[] {1, 0.4, 0.633}, new double[] {1, 0.4, 0.78}, found);
+        assert (found[0].equals(kd.nearest(new Point2D(1, 1))));
+        assert (found[1].equals(kd.nearest(new Point2D(0.4, 0.4))));
+        assert (found[2].equals(new Point2D(0.4, 0.7)));
+        //the Morton order keys stay positive up to the last cell
+        assert ((morton(32767, 32767) << 32) > 0);
+        assert (morton(cell(1, 0, 1), cell(1, 0, 1)) == morton(32767, 32767));
+
+        //any coordinates, the domain grows with the points
+        KdTree latLon = new KdTree();
+        latLon.insert(new Point2D(-33.87, 151.21));
+        latLon.insert(new Point2D(51.51, -0.13));
+        latLon.insert(new Point2D(40.71, -74.01));
+        latLon.insert(new Point2D(-22.91, -43.17));
+        assert (latLon.nearest(new Point2D(48.86, 2.35)).equals(new Point2D(51.51, -0.13)));
+        assert (latLon.rangeCount(new RectHV(0, -90, 90, 0)) == 2);
+
+        //or a fixed one
+        KdTree unit = new KdTree(new RectHV(0, 0, 1, 1));
+        unit.insert(new Point2D(0.5, 0.5));
+        try {
+            unit.insert(new Point2D(2, 2));
+            assert (false);
+        } catch (IllegalArgumentException e) {
+            assert (unit.size() == 1);
+        }
+
+        //delete
+        built.delete(new Point2D(0.3, 0.3));
+        assert (!built.contains(new Point2D(0.3, 0.3)));
+        assert (built.size() == 4);
+        assert (built.nearest(new Point2D(0.29, 0.33)).equals(new Point2D(0.4, 0.4)));
+        built.delete(new Point2D(0.3, 0.3));
+        assert (built.size() == 4);
+        built.delete(new Point2D(0.1, 0.1));
+        built.delete(new Point2D(0.2, 0.2));
+        built.delete(new Point2D(0.4, 0.4));
+        built.delete(new Point2D(0.5, 0.5));
+        assert (built.isEmpty());
+
+        //sorted points on one line, ties on the splitting coordinate are
+        //split on the other one so the tree stays balanced
+        for (boolean onX : new boolean[] {true, false}) {
+            KdTree line = new KdTree();
+            int n = 200000;
+            for (int i = 0; i < n; i++) {
+                line.insert(onX ? new Point2D(i, 0.5) : new Point2D(0.5, i));
+            }
+            assert (line.size() == n);
+            assert (line.contains(onX ? new Point2D(n - 1, 0.5) : new Point2D(0.5, n - 1)));
+            assert (!line.contains(new Point2D(0.5, 0.5)));
+            assert (line.rangeCount(new RectHV(-1, -1, n, n)) == n);
+            assert (line.rangeCount(onX ? new RectHV(10, 0.5, 19, 0.5) : new RectHV(0.5, 10, 0.5, 19)) == 10);
+            assert (line.nearest(onX ? new Point2D(1234.4, 3) : new Point2D(3, 1234.4))
+                    .equals(onX ? new Point2D(1234, 0.5) : new Point2D(0.5, 1234)));
+            for (int i = 0; i < n; i += 2) {
+                line.delete(onX ? new Point2D(i, 0.5) : new Point2D(0.5, i));
+            }
+            assert (line.size() == n / 2);
+            assert (line.rangeCount(new RectHV(-1, -1, n, n)) == n / 2);
+        }
+
+        //snapshot to a file and query it in place
+        try {
+            File file = File.createTempFile("kdtree", ".bin");
+            file.deleteOnExit();
+            kd.save(file);
+            MappedKdTree mapped = MappedKdTree.open(file);
+            assert (mapped.size() == kd.size());
+            assert (mapped.contains(new Point2D(0.9, 0.6)));
+            assert (!mapped.contains(new Point2D(0, 0)));
+            assert (mapped.nearest(new Point2D(0.633, 0.78)).equals(new Point2D(0.4, 0.7)));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
         kd.draw();
     }
 
@@ -0,0 +1,402 @@
+
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.RectHV;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Rough timings for KdTree, not a unit test. Uses random points in the unit
+ * square, and clustered ones to compare KdTree with PointGrid and PointSET.
+ *
+ * Usage: java KdTreeBenchmark [points [queries]]
+ *
+ * @author devin
+ */
+public class KdTreeBenchmark {
+
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int BATCH_ROUNDS = 5;
+
+    // how long each reader thread count runs for
+    private static final long READ_MILLIS = 1000;
+
+    // PointSET scans every point per query, so it only gets a few
+    private static final int SLOW_QUERIES = 200;
+
+    private static final int CLUSTERS = 20;
+    private static final double CLUSTER_SIGMA = 0.005;
+
+    /**
+     * Uniform random points, seeded so runs are comparable.
+     *
+     * @param n
+     * @param seed
+     * @return
+     */
+    private static Point2D[] randomPoints(int n, long seed) {
+        Random random = new Random(seed);
+        Point2D[] points = new Point2D[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = new Point2D(random.nextDouble(), random.nextDouble());
+        }
+        return points;
+    }
+
+    /**
+     * Points in CLUSTERS gaussian clusters. The clusters are the same for
+     * every seed, so points and queries come from the same distribution.
+     *
+     * @param n
+     * @param seed
+     * @return
+     */
+    private static Point2D[] clusteredPoints(int n, long seed) {
+        Point2D[] centers = randomPoints(CLUSTERS, 1);
+        Random random = new Random(seed);
+        Point2D[] points = new Point2D[n];
+        for (int i = 0; i < n; i++) {
+            Point2D center = centers[random.nextInt(CLUSTERS)];
+            points[i] = new Point2D(center.x() + random.nextGaussian() * CLUSTER_SIGMA,
+                    center.y() + random.nextGaussian() * CLUSTER_SIGMA);
+        }
+        return points;
+    }
+
+    /**
+     * Run every query once.
+     *
+     * @param kd
+     * @param queries
+     * @param stack counts the nodes visited
+     * @return a checksum, so the JIT can't drop the queries
+     */
+    private static double runNearest(KdTree kd, Point2D[] queries, KdTree.SearchStack stack) {
+        double sum = 0;
+        for (Point2D q : queries) {
+            sum += kd.nearest(q, stack).x();
+        }
+        return sum;
+    }
+
+    /**
+     * Nodes visited and time per nearest() query, for a tree built by
+     * inserting the points one by one and for a bulk built one.
+     *
+     * @param points
+     * @param queries
+     */
+    private static void nearest(Point2D[] points, Point2D[] queries) {
+
+        KdTree inserted = new KdTree();
+        for (Point2D p : points) {
+            inserted.insert(p);
+        }
+        KdTree built = KdTree.build(points);
+
+        String[] names = {"insert", "build"};
+        KdTree[] trees = {inserted, built};
+        for (int t = 0; t < trees.length; t++) {
+            KdTree kd = trees[t];
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                runNearest(kd, queries, new KdTree.SearchStack());
+            }
+
+            KdTree.SearchStack stack = new KdTree.SearchStack();
+            long start = System.nanoTime();
+            runNearest(kd, queries, stack);
+            double ns = (double) (System.nanoTime() - start) / queries.length;
+            long visited = stack.visited();
+
+            System.out.printf("nearest %-7s %9d points %8.1f nodes/query %8.0f ns/query%n",
+                    names[t], points.length, (double) visited / queries.length, ns);
+        }
+    }
+
+    /**
+     * Query cost while the points churn: every round deletes the oldest
+     * tenth of the points and inserts as many new ones in sorted order,
+     * which without rebuilding would grow a long path down the tree.
+     *
+     * @param points
+     * @param queries
+     */
+    private static void churn(Point2D[] points, Point2D[] queries) {
+
+        KdTree kd = KdTree.build(points);
+        int batch = points.length / 10;
+        int oldest = 0;
+
+        for (int round = 1; round <= 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                kd.delete(points[(oldest + i) % points.length]);
+                double t = (round * batch + i) / (6.0 * batch);
+                kd.insert(new Point2D(t, t));
+            }
+            double updateNs = (double) (System.nanoTime() - start) / batch;
+            oldest += batch;
+
+            KdTree.SearchStack stack = new KdTree.SearchStack();
+            start = System.nanoTime();
+            runNearest(kd, queries, stack);
+            double ns = (double) (System.nanoTime() - start) / queries.length;
+            long visited = stack.visited();
+
+            System.out.printf("churn round %d %9d points %8.1f nodes/query %8.0f ns/query %8.0f ns/update%n",
+                    round, kd.size(), (double) visited / queries.length, ns, updateNs);
+        }
+    }
+
+    /**
+     * Startup: inserting every point versus opening a saved snapshot, and
+     * the first queries on the mapped file.
+     *
+     * @param points
+     * @param queries
+     * @throws IOException
+     */
+    private static void snapshot(Point2D[] points, Point2D[] queries) throws IOException {
+
+        long start = System.nanoTime();
+        KdTree kd = new KdTree();
+        for (Point2D p : points) {
+            kd.insert(p);
+        }
+        double insertMs = (System.nanoTime() - start) / 1e6;
+
+        File file = File.createTempFile("kdtree", ".bin");
+        file.deleteOnExit();
+        start = System.nanoTime();
+        kd.save(file);
+        double saveMs = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        MappedKdTree mapped = MappedKdTree.open(file);
+        double openMs = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        for (Point2D q : queries) {
+            mapped.nearest(q);
+        }
+        double ns = (double) (System.nanoTime() - start) / queries.length;
+
+        System.out.printf("snapshot %9d points insert %8.1f ms, save %8.1f ms, open %6.2f ms, %6.0f ns/nearest%n",
+                points.length, insertMs, saveMs, openMs, ns);
+    }
+
+    /**
+     * Batch nearest neighbours: nearest() in a loop versus nearestAll(),
+     * the best of BATCH_ROUNDS runs each, one run is mostly JIT noise.
+     *
+     * @param points
+     * @param queries
+     */
+    private static void batch(Point2D[] points, Point2D[] queries) {
+
+        KdTree kd = KdTree.build(points);
+        double[] qx = new double[queries.length];
+        double[] qy = new double[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            qx[i] = queries[i].x();
+            qy[i] = queries[i].y();
+        }
+        Point2D[] loop = new Point2D[queries.length];
+        Point2D[] all = new Point2D[queries.length];
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (int j = 0; j < queries.length; j++) {
+                loop[j] = kd.nearest(queries[j]);
+            }
+            kd.nearestAll(qx, qy, all);
+        }
+
+        double loopMs = Double.POSITIVE_INFINITY;
+        double allMs = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < BATCH_ROUNDS; i++) {
+            long start = System.nanoTime();
+            for (int j = 0; j < queries.length; j++) {
+                loop[j] = kd.nearest(queries[j]);
+            }
+            loopMs = Math.min(loopMs, (System.nanoTime() - start) / 1e6);
+
+            start = System.nanoTime();
+            kd.nearestAll(qx, qy, all);
+            allMs = Math.min(allMs, (System.nanoTime() - start) / 1e6);
+        }
+
+        for (int j = 0; j < queries.length; j++) {
+            if (loop[j].distanceSquaredTo(queries[j]) != all[j].distanceSquaredTo(queries[j])) {
+                throw new IllegalStateException("nearestAll differs from nearest");
+            }
+        }
+
+        System.out.printf("batch loop       %9d points %8d queries %10.0f queries/s%n",
+                points.length, queries.length, queries.length / loopMs * 1e3);
+        System.out.printf("batch nearestAll %9d points %8d queries %10.0f queries/s (%.2fx, %d cores)%n",
+                points.length, queries.length, queries.length / allMs * 1e3, loopMs / allMs,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Read throughput of ConcurrentKdTree with a writer inserting all the
+     * time, for a growing number of reader threads.
+     *
+     * @param points
+     * @param queries
+     * @throws InterruptedException
+     */
+    private static void concurrentReads(Point2D[] points, Point2D[] queries)
+            throws InterruptedException {
+
+        ConcurrentKdTree kd = new ConcurrentKdTree();
+        for (Point2D p : points) {
+            kd.insert(p);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int readers = 1; readers <= Math.max(4, 2 * cores); readers *= 2) {
+
+            AtomicBoolean running = new AtomicBoolean(true);
+            LongAdder reads = new LongAdder();
+            LongAdder writes = new LongAdder();
+
+            Thread writer = new Thread(() -> {
+                Random random = new Random(1);
+                while (running.get()) {
+                    kd.insert(new Point2D(random.nextDouble(), random.nextDouble()));
+                    writes.increment();
+                }
+            });
+
+            Thread[] threads = new Thread[readers];
+            for (int r = 0; r < readers; r++) {
+                int offset = r * queries.length / readers;
+                threads[r] = new Thread(() -> {
+                    long count = 0;
+                    for (int i = offset; running.get(); i = (i + 1) % queries.length) {
+                        kd.nearest(queries[i]);
+                        count++;
+                    }
+                    reads.add(count);
+                });
+            }
+
+            writer.start();
+            for (Thread t : threads) {
+                t.start();
+            }
+            Thread.sleep(READ_MILLIS);
+            running.set(false);
+            writer.join();
+            for (Thread t : threads) {
+                t.join();
+            }
+
+            double seconds = READ_MILLIS / 1000.0;
+            System.out.printf("concurrent %2d readers %9d points %12.0f nearest/s %10.0f inserts/s (%d cores)%n",
+                    readers, points.length, reads.sum() / seconds, writes.sum() / seconds, cores);
+        }
+    }
+
+    /**
+     * PointGrid against KdTree and PointSET on the same points: insert,
+     * nearest and range queries with squares around the query points that
+     * hold about 16 points for uniform data.
+     *
+     * @param data name of the distribution
+     * @param points
+     * @param queries
+     */
+    private static void indexes(String data, Point2D[] points, Point2D[] queries) {
+
+        Point2D[] slowQueries = Arrays.copyOf(queries, Math.min(SLOW_QUERIES, queries.length));
+        double side = Math.sqrt(16.0 / points.length);
+
+        PointGrid grid = new PointGrid();
+        index(data, "PointGrid", grid::insert, grid::nearest, grid::range, points, queries, side);
+        KdTree kd = new KdTree();
+        index(data, "KdTree", kd::insert, kd::nearest, kd::range, points, queries, side);
+        PointSET set = new PointSET();
+        index(data, "PointSET", set::insert, set::nearest, set::range, points, slowQueries, side);
+    }
+
+    /**
+     * Time one index, see indexes.
+     *
+     * @param data
+     * @param name
+     * @param insert
+     * @param nearest
+     * @param range
+     * @param points
+     * @param queries
+     * @param side
+     */
+    private static void index(String data, String name, Consumer<Point2D> insert,
+            Function<Point2D, Point2D> nearest, Function<RectHV, Iterable<Point2D>> range,
+            Point2D[] points, Point2D[] queries, double side) {
+
+        long start = System.nanoTime();
+        for (Point2D p : points) {
+            insert.accept(p);
+        }
+        double insertNs = (double) (System.nanoTime() - start) / points.length;
+
+        RectHV[] rects = new RectHV[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            rects[i] = new RectHV(queries[i].x() - side / 2, queries[i].y() - side / 2,
+                    queries[i].x() + side / 2, queries[i].y() + side / 2);
+        }
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (Point2D q : queries) {
+                nearest.apply(q);
+            }
+        }
+        start = System.nanoTime();
+        for (Point2D q : queries) {
+            nearest.apply(q);
+        }
+        double nearestNs = (double) (System.nanoTime() - start) / queries.length;
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (RectHV rect : rects) {
+                range.apply(rect);
+            }
+        }
+        long found = 0;
+        start = System.nanoTime();
+        for (RectHV rect : rects) {
+            for (Point2D p : range.apply(rect)) {
+                found++;
+            }
+        }
+        double rangeNs = (double) (System.nanoTime() - start) / queries.length;
+
+        System.out.printf("%-9s %-9s %9d points %8.0f ns/insert %10.0f ns/nearest %10.0f ns/range %6.1f found/range%n",
+                data, name, points.length, insertNs, nearestNs, rangeNs, (double) found / queries.length);
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int q = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        Point2D[] points = randomPoints(n, 42);
+        Point2D[] queries = randomPoints(q, 7);
+
+        nearest(points, queries);
+        churn(points, queries);
+        snapshot(points, queries);
+        batch(points, queries);
+        concurrentReads(points, queries);
+        indexes("uniform", points, queries);
+        indexes("clustered", clusteredPoints(n, 42), clusteredPoints(q, 7));
+    }
+}
@@ -0,0 +1,314 @@
+
+import edu.princeton.cs.algs4.RectHV;
+import edu.princeton.cs.algs4.Point2D;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Read only 2d-tree queried directly in a file written by KdTree.save, see
+ * there for the layout. The file is memory mapped, so opening it only reads
+ * the header and the pages are loaded by the OS as queries touch them,
+ * nothing is copied onto the heap. Like CompactKdTree the node rectangles
+ * are not stored, they are narrowed down from the root rectangle during a
+ * search.
+ *
+ * Safe to share between threads, queries only use absolute reads.
+ *
+ * @author devin
+ */
+public class MappedKdTree {
+
+    static final int MAGIC = 0x4B445432; // "KDT2", split in the order of KdTree.compare
+    static final int HEADER_BYTES = 4 + 4 + 4 * 8;
+    static final int NODE_BYTES = 8 + 8 + 4 + 4;
+
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final double xmin;
+    private final double ymin;
+    private final double xmax;
+    private final double ymax;
+
+    private MappedKdTree(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("not a KdTree file");
+        }
+        size = buffer.getInt(4);
+        xmin = buffer.getDouble(8);
+        ymin = buffer.getDouble(16);
+        xmax = buffer.getDouble(24);
+        ymax = buffer.getDouble(32);
+
+        if (size < 0 || buffer.capacity() != HEADER_BYTES + (long) size * NODE_BYTES) {
+            throw new IllegalArgumentException("truncated KdTree file");
+        }
+    }
+
+    /**
+     * Map a file written by KdTree.save.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static MappedKdTree open(File file) throws IOException {
+
+        if (file == null) {
+            throw new IllegalArgumentException();
+        }
+
+        //the mapping stays valid after the channel is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("KdTree file too large to map");
+            }
+            return new MappedKdTree(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private double x(int n) {
+        return buffer.getDouble(HEADER_BYTES + n * NODE_BYTES);
+    }
+
+    private double y(int n) {
+        return buffer.getDouble(HEADER_BYTES + n * NODE_BYTES + 8);
+    }
+
+    private int left(int n) {
+        return buffer.getInt(HEADER_BYTES + n * NODE_BYTES + 16);
+    }
+
+    private int right(int n) {
+        return buffer.getInt(HEADER_BYTES + n * NODE_BYTES + 20);
+    }
+
+    public boolean contains(Point2D p) {
+        // does the set contain point p?
+        if (p == null) {
+            throw new IllegalArgumentException();
+        }
+
+        double px = p.x();
+        double py = p.y();
+
+        int n = size == 0 ? -1 : 0;
+        boolean vertical = true;
+        while (n != -1) {
+            double x = x(n);
+            double y = y(n);
+            if (px == x && py == y) {
+                return true;
+            }
+            n = KdTree.compare(px, py, x, y, vertical) <= 0 ? left(n) : right(n);
+            vertical = !vertical;
+        }
+        return false;
+    }
+
+    public Iterable<Point2D> range(RectHV rect) {
+
+        if (rect == null) {
+            throw new IllegalArgumentException();
+        }
+        ArrayList<Point2D> rangePoints = new ArrayList<>();
+        if (size > 0) {
+            range(rect, rangePoints::add, 0, true);
+        }
+        return rangePoints;
+    }
+
+    /**
+     * Hand every point inside the rectangle (or on the boundary) to the
+     * consumer.
+     *
+     * @param rect
+     * @param consumer
+     */
+    public void range(RectHV rect, Consumer<Point2D> consumer) {
+
+        if (rect == null || consumer == null) {
+            throw new IllegalArgumentException();
+        }
+        if (size > 0) {
+            range(rect, consumer, 0, true);
+        }
+    }
+
+    /**
+     * Recursive function, see KdTree.range.
+     *
+     * @param rect
+     * @param consumer
+     * @param n
+     * @param vertical
+     */
+    private void range(RectHV rect, Consumer<Point2D> consumer, int n, boolean vertical) {
+
+        double x = x(n);
+        double y = y(n);
+
+        if (x >= rect.xmin() && x <= rect.xmax() && y >= rect.ymin() && y <= rect.ymax()) {
+            consumer.accept(new Point2D(x, y));
+        }
+
+        int left = left(n);
+        if (left != -1 && KdTree.compare(rect.xmin(), rect.ymin(), x, y, vertical) < 0) {
+            range(rect, consumer, left, !vertical);
+        }
+        int right = right(n);
+        if (right != -1 && KdTree.compare(rect.xmax(), rect.ymax(), x, y, vertical) > 0) {
+            range(rect, consumer, right, !vertical);
+        }
+    }
+
+    public Point2D nearest(Point2D p) {
+        // a nearest neighbor in the set to point p; null if the set is empty
+        if (p == null) {
+            throw new IllegalArgumentException();
+        }
+
+        if (size == 0) {
+            return null;
+        }
+
+        Nearest best = new Nearest();
+        nearest(p.x(), p.y(), 0, true, xmin, ymin, xmax, ymax, best);
+        return new Point2D(x(best.node), y(best.node));
+    }
+
+    /**
+     * Nearest node found so far and its squared distance.
+     */
+    private static class Nearest {
+        private int node = -1;
+        private double distance = Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Recursive function, the file is written balanced so the depth is
+     * about log2(n). The subtree on the side of p is searched first, and a
+     * subtree is skipped if its rectangle is no nearer than the best point.
+     *
+     * @param px
+     * @param py
+     * @param n
+     * @param vertical
+     * @param rxmin rectangle of n
+     * @param rymin
+     * @param rxmax
+     * @param rymax
+     * @param best
+     */
+    private void nearest(double px, double py, int n, boolean vertical,
+            double rxmin, double rymin, double rxmax, double rymax, Nearest best) {
+
+        //nothing is pruned before the first point, distances can overflow
+        //to infinity for far away points
+        if (best.node != -1
+                && rectDistanceSquared(px, py, rxmin, rymin, rxmax, rymax) >= best.distance) {
+            return;
+        }
+
+        double x = x(n);
+        double y = y(n);
+        double dx = x - px;
+        double dy = y - py;
+        double distance = dx * dx + dy * dy;
+        if (best.node == -1 || distance < best.distance) {
+            best.node = n;
+            best.distance = distance;
+        }
+
+        int left = left(n);
+        int right = right(n);
+        boolean leftFirst = KdTree.compare(px, py, x, y, vertical) <= 0;
+
+        for (int side = 0; side < 2; side++) {
+            boolean goLeft = leftFirst == (side == 0);
+            int child = goLeft ? left : right;
+            if (child == -1) {
+                continue;
+            }
+            if (vertical) {
+                nearest(px, py, child, false,
+                        goLeft ? rxmin : x, rymin, goLeft ? x : rxmax, rymax, best);
+            } else {
+                nearest(px, py, child, true,
+                        rxmin, goLeft ? rymin : y, rxmax, goLeft ? y : rymax, best);
+            }
+        }
+    }
+
+    /**
+     * Squared distance from a point to a rectangle, 0 if it is inside.
+     *
+     * @return
+     */
+    private static double rectDistanceSquared(double px, double py,
+            double xmin, double ymin, double xmax, double ymax) {
+        double dx = 0;
+        double dy = 0;
+        if (px < xmin) {
+            dx = px - xmin;
+        } else if (px > xmax) {
+            dx = px - xmax;
+        }
+        if (py < ymin) {
+            dy = py - ymin;
+        } else if (py > ymax) {
+            dy = py - ymax;
+        }
+        return dx * dx + dy * dy;
+    }
+
+    public static void main(String[] args) throws IOException {
+        // save a KdTree and query the file
+        KdTree kd = new KdTree();
+        kd.insert(new Point2D(0.7, 0.2));
+        kd.insert(new Point2D(0.5, 0.4));
+        kd.insert(new Point2D(0.2, 0.3));
+        kd.insert(new Point2D(0.4, 0.7));
+        kd.insert(new Point2D(0.9, 0.6));
+
+        File file = File.createTempFile("kdtree", ".bin");
+        file.deleteOnExit();
+        kd.save(file);
+        assert (file.length() == HEADER_BYTES + 5 * NODE_BYTES);
+
+        MappedKdTree mapped = MappedKdTree.open(file);
+        assert (mapped.size() == 5);
+        assert (mapped.contains(new Point2D(0.2, 0.3)));
+        assert (!mapped.contains(new Point2D(0, 0)));
+        assert (mapped.nearest(new Point2D(0.633, 0.78)).equals(new Point2D(0.4, 0.7)));
+
+        int count = 0;
+        for (Point2D p : mapped.range(new RectHV(0.3, 0.3, 1, 1))) {
+            count++;
+        }
+        assert (count == 3);
+
+        //squared distances overflow to infinity
+        KdTree huge = new KdTree();
+        huge.insert(new Point2D(1e200, 1e200));
+        huge.insert(new Point2D(-1e200, 1e200));
+        huge.save(file);
+        assert (MappedKdTree.open(file).nearest(new Point2D(-1e200, -1e200)) != null);
+    }
+
+}
@@ -0,0 +1,483 @@
+
+import edu.princeton.cs.algs4.RectHV;
+import edu.princeton.cs.algs4.Point2D;
+import edu.princeton.cs.algs4.StdDraw;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Point set in a uniform grid of buckets, same API as PointSET and KdTree.
+ * The cell size is picked from the number of points so that a cell holds
+ * about TARGET_LOAD of them, and the grid is laid out again when the set
+ * outgrows it. For near uniform data contains, range and nearest then only
+ * look at the few cells around the query instead of walking down a tree.
+ * Clustered data puts many points in few cells and leaves the rest empty,
+ * KdTree is the better choice there (see KdTreeBenchmark).
+ *
+ * Each cell keeps its points as x, y pairs in one double array.
+ *
+ * @author devin
+ */
+public class PointGrid {
+
+    // points per cell the grid is laid out for
+    private static final int TARGET_LOAD = 2;
+
+    // average points per cell that makes the grid finer
+    private static final int MAX_LOAD = 2 * TARGET_LOAD;
+
+    private final RectHV domain; // null if the grid grows with the points
+
+    // area covered by the grid, and its cells
+    private double gxmin;
+    private double gymin;
+    private double gxmax;
+    private double gymax;
+    private int columns;
+    private int rows;
+    private double cellWidth;
+    private double cellHeight;
+
+    private double[][] cells; // null until the first point
+    private int[] counts;
+    private int size = 0;
+
+    public PointGrid() {
+        // construct an empty set of points, the grid grows to fit them
+        domain = null;
+    }
+
+    /**
+     * Empty set of points in a fixed domain, inserting a point outside of
+     * it is an error.
+     *
+     * @param domain
+     */
+    public PointGrid(RectHV domain) {
+        if (domain == null) {
+            throw new IllegalArgumentException();
+        }
+        this.domain = domain;
+        regrid(domain.xmin(), domain.ymin(), domain.xmax(), domain.ymax());
+    }
+
+    public boolean isEmpty() {
+        // is the set empty?
+        return size == 0;
+    }
+
+    public int size() {
+        // number of points in the set
+        return size;
+    }
+
+    /**
+     * Lay the grid out over the given bounds for the current size and move
+     * the points over.
+     *
+     * @param xmin
+     * @param ymin
+     * @param xmax
+     * @param ymax
+     */
+    private void regrid(double xmin, double ymin, double xmax, double ymax) {
+
+        double[][] oldCells = cells;
+        int[] oldCounts = counts;
+
+        //about TARGET_LOAD points per cell, as square as the bounds allow
+        int target = Math.max(1, size / TARGET_LOAD);
+        double aspect = (xmax - xmin) / (ymax - ymin);
+        columns = (int) Math.max(1, Math.min(target, Math.round(Math.sqrt(target * aspect))));
+        rows = (target + columns - 1) / columns;
+
+        gxmin = xmin;
+        gymin = ymin;
+        gxmax = xmax;
+        gymax = ymax;
+        cellWidth = (xmax - xmin) / columns;
+        cellHeight = (ymax - ymin) / rows;
+        cells = new double[columns * rows][];
+        counts = new int[columns * rows];
+
+        if (oldCells != null) {
+            for (int c = 0; c < oldCells.length; c++) {
+                for (int i = 0; i < oldCounts[c]; i++) {
+                    add(oldCells[c][2 * i], oldCells[c][2 * i + 1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Column of x, clamped to the grid.
+     *
+     * @param x
+     * @return
+     */
+    private int column(double x) {
+        int c = (int) ((x - gxmin) / cellWidth);
+        return Math.max(0, Math.min(columns - 1, c));
+    }
+
+    /**
+     * Row of y, clamped to the grid.
+     *
+     * @param y
+     * @return
+     */
+    private int row(double y) {
+        int r = (int) ((y - gymin) / cellHeight);
+        return Math.max(0, Math.min(rows - 1, r));
+    }
+
+    private boolean inGrid(double x, double y) {
+        return x >= gxmin && x <= gxmax && y >= gymin && y <= gymax;
+    }
+
+    /**
+     * Append a point to its cell, without looking for dupes.
+     *
+     * @param x
+     * @param y
+     */
+    private void add(double x, double y) {
+        int c = row(y) * columns + column(x);
+        double[] cell = cells[c];
+        int count = counts[c];
+        if (cell == null) {
+            cell = new double[2 * TARGET_LOAD];
+            cells[c] = cell;
+        } else if (2 * count == cell.length) {
+            cell = Arrays.copyOf(cell, 2 * cell.length);
+            cells[c] = cell;
+        }
+        cell[2 * count] = x;
+        cell[2 * count + 1] = y;
+        counts[c] = count + 1;
+    }
+
+    public void insert(Point2D p) {
+        // add the point to the set (if it is not already in the set)
+        if (p == null) {
+            throw new IllegalArgumentException();
+        }
+        if (domain != null && !domain.contains(p)) {
+            throw new IllegalArgumentException("point outside of the domain " + domain);
+        }
+
+        double x = p.x();
+        double y = p.y();
+
+        if (cells == null) {
+            //a unit square around the first point, grown as needed
+            regrid(x - 0.5, y - 0.5, x + 0.5, y + 0.5);
+        } else if (!inGrid(x, y)) {
+            //at least double the extent on the side that grew, so points
+            //moving away in one direction only cost a few regrids
+            double xmin = gxmin;
+            double xmax = gxmax;
+            if (x < gxmin) {
+                xmin = x - (gxmax - x);
+            } else if (x > gxmax) {
+                xmax = x + (x - gxmin);
+            }
+            double ymin = gymin;
+            double ymax = gymax;
+            if (y < gymin) {
+                ymin = y - (gymax - y);
+            } else if (y > gymax) {
+                ymax = y + (y - gymin);
+            }
+            regrid(xmin, ymin, xmax, ymax);
+        } else if (contains(x, y)) {
+            return; //dupe
+        }
+
+        add(x, y);
+        size++;
+
+        if (size > MAX_LOAD * cells.length) {
+            regrid(gxmin, gymin, gxmax, gymax);
+        }
+    }
+
+    public boolean contains(Point2D p) {
+        // does the set contain point p?
+        if (p == null) {
+            throw new IllegalArgumentException();
+        }
+
+        return size > 0 && inGrid(p.x(), p.y()) && contains(p.x(), p.y());
+    }
+
+    private boolean contains(double x, double y) {
+        int c = row(y) * columns + column(x);
+        double[] cell = cells[c];
+        for (int i = 0; i < counts[c]; i++) {
+            if (cell[2 * i] == x && cell[2 * i + 1] == y) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void draw() {
+        // draw all points to standard draw, with the grid
+        if (cells != null) {
+            StdDraw.setPenColor(StdDraw.LIGHT_GRAY);
+            StdDraw.setPenRadius(0.001);
+            for (int c = 0; c <= columns; c++) {
+                double x = gxmin + c * cellWidth;
+                StdDraw.line(x, gymin, x, gymax);
+            }
+            for (int r = 0; r <= rows; r++) {
+                double y = gymin + r * cellHeight;
+                StdDraw.line(gxmin, y, gxmax, y);
+            }
+
+            StdDraw.setPenColor(StdDraw.BLACK);
+            StdDraw.setPenRadius(0.01);
+            for (int c = 0; c < cells.length; c++) {
+                for (int i = 0; i < counts[c]; i++) {
+                    StdDraw.point(cells[c][2 * i], cells[c][2 * i + 1]);
+                }
+            }
+        }
+        StdDraw.show();
+    }
+
+    public Iterable<Point2D> range(RectHV rect) {
+
+        if (rect == null) {
+            throw new IllegalArgumentException();
+        }
+        ArrayList<Point2D> rangePoints = new ArrayList<>();
+        range(rect, rangePoints::add);
+        return rangePoints;
+    }
+
+    /**
+     * Hand every point inside the rectangle (or on the boundary) to the
+     * consumer. Only the cells the rectangle overlaps are looked at.
+     *
+     * @param rect
+     * @param consumer
+     */
+    public void range(RectHV rect, Consumer<Point2D> consumer) {
+
+        if (rect == null || consumer == null) {
+            throw new IllegalArgumentException();
+        }
+        if (size == 0 || rect.xmax() < gxmin || rect.xmin() > gxmax
+                || rect.ymax() < gymin || rect.ymin() > gymax) {
+            return;
+        }
+
+        int cmax = column(rect.xmax());
+        int rmax = row(rect.ymax());
+        for (int r = row(rect.ymin()); r <= rmax; r++) {
+            for (int c = column(rect.xmin()); c <= cmax; c++) {
+                double[] cell = cells[r * columns + c];
+                for (int i = 0; i < counts[r * columns + c]; i++) {
+                    double x = cell[2 * i];
+                    double y = cell[2 * i + 1];
+                    if (x >= rect.xmin() && x <= rect.xmax() && y >= rect.ymin() && y <= rect.ymax()) {
+                        consumer.accept(new Point2D(x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Nearest point found so far and its squared distance.
+     */
+    private static class Nearest {
+        private double x;
+        private double y;
+        private double distance = Double.POSITIVE_INFINITY;
+        private boolean found;
+    }
+
+    /**
+     * Search the rings of cells around the cell of p, from the inside out.
+     * After each ring every cell left is at least as far from p as the
+     * nearest edge of the rings searched so far, so the search stops once
+     * the best point is no farther than that.
+     *
+     * @param p
+     * @return a nearest neighbor in the set to point p; null if the set is
+     * empty
+     */
+    public Point2D nearest(Point2D p) {
+
+        if (p == null) {
+            throw new IllegalArgumentException();
+        }
+
+        if (size == 0) {
+            return null;
+        }
+
+        double px = p.x();
+        double py = p.y();
+        int c0 = column(px);
+        int r0 = row(py);
+        int rings = Math.max(Math.max(c0, columns - 1 - c0), Math.max(r0, rows - 1 - r0));
+
+        Nearest best = new Nearest();
+        for (int ring = 0; ring <= rings; ring++) {
+            int cmin = c0 - ring;
+            int cmax = c0 + ring;
+            int rmin = r0 - ring;
+            int rmax = r0 + ring;
+
+            for (int r = Math.max(rmin, 0); r <= Math.min(rmax, rows - 1); r++) {
+                if (r == rmin || r == rmax) {
+                    for (int c = Math.max(cmin, 0); c <= Math.min(cmax, columns - 1); c++) {
+                        nearest(px, py, r * columns + c, best);
+                    }
+                } else {
+                    //only the two ends of the rows in between
+                    if (cmin >= 0) {
+                        nearest(px, py, r * columns + cmin, best);
+                    }
+                    if (cmax < columns) {
+                        nearest(px, py, r * columns + cmax, best);
+                    }
+                }
+            }
+
+            double gap = Double.POSITIVE_INFINITY;
+            if (cmin > 0) {
+                gap = Math.min(gap, px - (gxmin + cmin * cellWidth));
+            }
+            if (cmax < columns - 1) {
+                gap = Math.min(gap, gxmin + (cmax + 1) * cellWidth - px);
+            }
+            if (rmin > 0) {
+                gap = Math.min(gap, py - (gymin + rmin * cellHeight));
+            }
+            if (rmax < rows - 1) {
+                gap = Math.min(gap, gymin + (rmax + 1) * cellHeight - py);
+            }
+            gap = Math.max(gap, 0);
+            if (best.found && best.distance <= gap * gap) {
+                break;
+            }
+        }
+
+        return new Point2D(best.x, best.y);
+    }
+
+    /**
+     * Check the points of one cell against the best so far.
+     *
+     * @param px
+     * @param py
+     * @param c
+     * @param best
+     */
+    private void nearest(double px, double py, int c, Nearest best) {
+        double[] cell = cells[c];
+        for (int i = 0; i < counts[c]; i++) {
+            double dx = cell[2 * i] - px;
+            double dy = cell[2 * i + 1] - py;
+            double distance = dx * dx + dy * dy;
+            //the first point is always taken, distances can overflow to
+            //infinity for far away points
+            if (!best.found || distance < best.distance) {
+                best.found = true;
+                best.x = cell[2 * i];
+                best.y = cell[2 * i + 1];
+                best.distance = distance;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        // unit testing of the methods (optional)
+        PointGrid grid = new PointGrid();
+
+        assert (grid.size() == 0);
+        assert (grid.isEmpty());
+        assert (grid.nearest(new Point2D(1, 1)) == null);
+        assert (!grid.contains(new Point2D(1, 1)));
+
+        grid.insert(new Point2D(0.7, 0.2));
+        assert (grid.contains(new Point2D(0.7, 0.2)));
+        assert (grid.nearest(new Point2D(1, 1)).equals(new Point2D(0.7, 0.2)));
+
+        //dupe
+        grid.insert(new Point2D(0.7, 0.2));
+        assert (grid.size() == 1);
+
+        grid.insert(new Point2D(0.5, 0.4));
+        grid.insert(new Point2D(0.2, 0.3));
+        grid.insert(new Point2D(0.4, 0.7));
+        grid.insert(new Point2D(0.9, 0.6));
+        assert (grid.size() == 5);
+
+        assert (!grid.contains(new Point2D(0, 0)));
+        assert (!grid.contains(new Point2D(1, 1)));
+        assert (grid.nearest(new Point2D(0.21, 0.32)).equals(new Point2D(0.2, 0.3)));
+        assert (grid.nearest(new Point2D(0.633, 0.78)).equals(new Point2D(0.4, 0.7)));
+
+        int count = 0;
+        for (Point2D p : grid.range(new RectHV(0.3, 0.3, 1, 1))) {
+            assert (p.x() >= 0.3 && p.y() >= 0.3);
+            count++;
+        }
+        assert (count == 3);
+
+        //same answers as PointSET, with points far outside the first grid
+        PointSET set = new PointSET();
+        java.util.Random random = new java.util.Random(25);
+        for (int i = 0; i < 2000; i++) {
+            Point2D p = new Point2D(random.nextDouble() * 1000 - 500, random.nextDouble() * 10);
+            grid.insert(p);
+            set.insert(p);
+        }
+        for (Point2D p : new Point2D[]{new Point2D(0.7, 0.2), new Point2D(0.5, 0.4),
+            new Point2D(0.2, 0.3), new Point2D(0.4, 0.7), new Point2D(0.9, 0.6)}) {
+            set.insert(p);
+        }
+        assert (grid.size() == set.size());
+        for (int i = 0; i < 200; i++) {
+            Point2D q = new Point2D(random.nextDouble() * 2000 - 1000, random.nextDouble() * 40 - 20);
+            assert (grid.nearest(q).distanceSquaredTo(q) == set.nearest(q).distanceSquaredTo(q));
+            RectHV rect = new RectHV(q.x(), q.y(), q.x() + 50, q.y() + 5);
+            int inGrid = 0;
+            for (Point2D p : grid.range(rect)) {
+                inGrid++;
+            }
+            int inSet = 0;
+            for (Point2D p : set.range(rect)) {
+                inSet++;
+            }
+            assert (inGrid == inSet);
+        }
+
+        //fixed domain
+        PointGrid unit = new PointGrid(new RectHV(0, 0, 1, 1));
+        unit.insert(new Point2D(1, 1));
+        assert (unit.contains(new Point2D(1, 1)));
+        try {
+            unit.insert(new Point2D(2, 2));
+            assert (false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        //squared distances overflow to infinity
+        PointGrid huge = new PointGrid();
+        huge.insert(new Point2D(1e200, 1e200));
+        huge.insert(new Point2D(-1e200, 1e200));
+        assert (huge.contains(huge.nearest(new Point2D(-1e200, -1e200))));
+
+        grid.draw();
+    }
+
+}
@@ -0,0 +1,62 @@
+/**
+ * The dual-gradient energy function from the assignment: the square root of
+ * the sum of the squared RGB differences between the left/right and up/down
+ * neighbours. Border pixels have energy 1000.
+ *
+ * http://coursera.cs.princeton.edu/algs4/assignments/seam.html
+ *
+ * @author devin
+ */
+public class DualGradientEnergy implements EnergyFunction {
+
+    private static final int BORDER_ENERGY = 1000;
+
+    @Override
+    public double borderEnergy() {
+        return BORDER_ENERGY;
+    }
+
+    @Override
+    public boolean usesLuminance() {
+        return false;
+    }
+
+    @Override
+    public double energy(int[] pixels, byte[] luminance, int index, int stride) {
+        int x_e = gradientSquared(pixels[index + 1], pixels[index - 1]);
+        int y_e = gradientSquared(pixels[index + stride], pixels[index - stride]);
+
+        return Math.sqrt(x_e + y_e);
+    }
+
+    /**
+     * Straight line integer math over neighbouring array elements so the JIT
+     * can vectorize it. Squaring as ints keeps the sums exact.
+     */
+    @Override
+    public void energyRow(int[] pixels, byte[] luminance, int from, int to,
+            int stride, double[] energy, int offset) {
+        for (int index = from; index < to; index++) {
+            int x_e = gradientSquared(pixels[index + 1], pixels[index - 1]);
+            int y_e = gradientSquared(pixels[index + stride], pixels[index - stride]);
+            energy[index - offset] = Math.sqrt(x_e + y_e);
+        }
+    }
+
+    /**
+     * Compute the squared RGB difference of two pixels. Helper method that
+     * only computes a single direction (delta X or delta Y).
+     *
+     * @param rgb1
+     * @param rgb2
+     * @return
+     */
+    private static int gradientSquared(int rgb1, int rgb2) {
+
+        int red   = ((rgb1 >> 16) & 0xFF) - ((rgb2 >> 16) & 0xFF);
+        int green = ((rgb1 >>  8) & 0xFF) - ((rgb2 >>  8) & 0xFF);
+        int blue  = ((rgb1 >>  0) & 0xFF) - ((rgb2 >>  0) & 0xFF);
+
+        return red * red + green * green + blue * blue;
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Energy function used by SeamCarver to pick seams, low energy pixels are
+ * removed first.
+ *
+ * The energy of an interior pixel may only depend on the pixel and its four
+ * neighbours (left, right, up, down). SeamCarver relies on this to only
+ * recompute the pixels next to a removed seam.
+ *
+ * @author devin
+ */
+public interface EnergyFunction {
+
+    /**
+     * Energy of the pixels on the border of the picture.
+     *
+     * @return
+     */
+    double borderEnergy();
+
+    /**
+     * If true SeamCarver keeps a luminance plane (one byte per pixel) up to
+     * date and passes it in, otherwise luminance is null.
+     *
+     * @return
+     */
+    boolean usesLuminance();
+
+    /**
+     * Energy of an interior pixel.
+     *
+     * @param pixels packed RGB values, row major
+     * @param luminance luminance of each pixel (0 - 255) laid out like pixels
+     * @param index index of the pixel in pixels
+     * @param stride distance between rows in pixels
+     * @return
+     */
+    double energy(int[] pixels, byte[] luminance, int index, int stride);
+
+    /**
+     * Energy of the interior pixels [from, to) of a row. Override with a
+     * tight loop if the function can be computed in bulk faster.
+     *
+     * @param pixels
+     * @param luminance
+     * @param from
+     * @param to
+     * @param stride
+     * @param energy output, the energy of pixels[index] goes to
+     * energy[index - offset]
+     * @param offset
+     */
+    default void energyRow(int[] pixels, byte[] luminance, int from, int to,
+            int stride, double[] energy, int offset) {
+        for (int index = from; index < to; index++) {
+            energy[index - offset] = energy(pixels, luminance, index, stride);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Cheap energy function for previews: the L1 gradient of the luminance,
+ * |L(x+1) - L(x-1)| + |L(y+1) - L(y-1)|. Only reads the luminance plane, one
+ * byte per pixel. Border pixels have energy 1000, above any interior pixel.
+ *
+ * @author devin
+ */
+public class LuminanceGradientEnergy implements EnergyFunction {
+
+    private static final int BORDER_ENERGY = 1000;
+
+    @Override
+    public double borderEnergy() {
+        return BORDER_ENERGY;
+    }
+
+    @Override
+    public boolean usesLuminance() {
+        return true;
+    }
+
+    @Override
+    public double energy(int[] pixels, byte[] luminance, int index, int stride) {
+        return Math.abs((luminance[index + 1] & 0xFF) - (luminance[index - 1] & 0xFF))
+                + Math.abs((luminance[index + stride] & 0xFF) - (luminance[index - stride] & 0xFF));
+    }
+
+    @Override
+    public void energyRow(int[] pixels, byte[] luminance, int from, int to,
+            int stride, double[] energy, int offset) {
+        for (int index = from; index < to; index++) {
+            int x_e = (luminance[index + 1] & 0xFF) - (luminance[index - 1] & 0xFF);
+            int y_e = (luminance[index + stride] & 0xFF) - (luminance[index - stride] & 0xFF);
+            energy[index - offset] = Math.abs(x_e) + Math.abs(y_e);
+        }
+    }
+}
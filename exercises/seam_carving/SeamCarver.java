@@ -1,385 +1,1686 @@
 import edu.princeton.cs.algs4.Picture;
 import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * http://coursera.cs.princeton.edu/algs4/assignments/seam.html
  *
+ * Horizontal seams are handled without transposing the picture: the seam
+ * search and removal work in "seam space", where a seam has one pixel per
+ * seam row and picks a seam column in each. For a vertical seam seam rows are
+ * picture rows (y), for a horizontal seam they are picture columns (x).
+ *
  * @author devin
  */
 public class SeamCarver {
 
-    private Picture picture;
-    private boolean transposed = false;
-    private static final int BORDER_ENERGY = 1000;
-    private static final int ENERGY_INIT_VALUE = -1;
+    // working image, packed ARGB values stored row major. The logical width
+    // shrinks as seams are removed while the stride (row length in the
+    // buffer) stays the same, so rows never have to be moved. Only inserting
+    // seams allocates a new buffer.
+    private int[] pixels;
+    private int stride;
+    private int picWidth;
+    private int picHeight;
+
+    // built lazily by picture(), null whenever the pixels have changed
+    private Picture picture;
+
+    private final EnergyFunction energyFunction;
+
+    // luminance of each pixel (0 - 255) laid out like the pixels, only kept
+    // if the energy function uses it
+    private byte[] luminance;
+
+    /**
+     * How the energy map is stored. DOUBLE keeps the exact energies. FLOAT
+     * halves the memory (and memory bandwidth) of the map, the energies are
+     * rounded to float so seams can differ from DOUBLE where two paths are
+     * within rounding of each other.
+     */
+    public enum Precision { DOUBLE, FLOAT }
+
+    private Precision precision = Precision.DOUBLE;
+
+    // energy of the current picture, laid out like the pixels (y * stride + x).
+    // Computed in one pass the first time it is needed, then kept across seam
+    // removals so only the pixels next to a removed seam are recomputed.
+    // Depending on the precision only one of them is used, both are null
+    // until the map is computed.
+    private double[] energy;
+    private float[] energyFloat;
+
+    // scratch buffers for findSeam, laid out row major in seam space
+    // (j * width + i) so the DP walks them sequentially in either direction.
+    // Only two seam rows of distTo are kept, the current and the one above.
+    // edgeTo holds the parent's seam column relative to the pixel (-1, 0 or
+    // 1), which fits in a byte.
+    private double[] distTo;
+    private byte[] edgeTo;
+
+    // one row of energies before they are rounded to float
+    private double[] energyRow;
+
+    // protect / remove masks, one bit per pixel. Each picture row starts on
+    // a new word (maskWords words per row) so removing a vertical seam only
+    // shifts the words of each row. The bits move with the pixels, so the
+    // biased energy of a pixel only changes if it is next to a removed seam.
+    private static final double PROTECT_BIAS = 1e6;
+    private static final double REMOVE_BIAS = -1e6;
+    private long[] protectMask;
+    private long[] removeMask;
+    private int maskWords;
+
+    // seam scratch buffer for the batch removal methods, long enough for a
+    // seam in either direction
+    private int[] seamBuffer;
+
+    // energy of the last seam found, including its first pixel
+    private double seamEnergy;
+
+    // where the arrays above come from, may be shared with earlier carvers
+    private final Buffers buffers;
+
+    // asynchronous requests run one after the other on the common pool, each
+    // one chained after the last. Every request takes the next generation, a
+    // request whose generation is no longer the latest is stale and stops at
+    // the next seam row. asyncGeneration and asyncResult are only set on the
+    // thread running a request (0 / null otherwise).
+    private final AtomicInteger generation = new AtomicInteger();
+    private CompletableFuture<Void> asyncTail = CompletableFuture.completedFuture(null);
+    private int asyncGeneration;
+    private Request<?> asyncResult;
+
+    // last snapshot published by an asynchronous resize. It shares the pixel
+    // buffer, so while pixelsShared is set the next removal copies the
+    // buffer first (copy on write). Between seams a snapshot is only
+    // published when snapshot() has asked for one since the last, and at
+    // most once per SNAPSHOT_INTERVAL, so with nobody watching a resize
+    // copies the buffer at most once (after the snapshot of the result of
+    // the resize before it).
+    private static final long SNAPSHOT_INTERVAL = 16_000_000L; // ns, ~60 per second
+    private volatile Snapshot snapshot;
+    private volatile boolean snapshotRequested;
+    private boolean pixelsShared;
+    private long lastSnapshot;
+
+    /**
+     * Arrays a SeamCarver works in. Handing the same Buffers to one carver
+     * after another (e.g. one per worker thread) lets them reuse the arrays
+     * instead of allocating new ones per picture. A Buffers must only be used
+     * by one carver at a time, and a carver must not be used any more once
+     * its Buffers has been handed to the next one.
+     */
+    public static class Buffers {
+
+        private int[] pixels;
+        private byte[] luminance;
+        private double[] energy;
+        private float[] energyFloat;
+        private double[] distTo;
+        private byte[] edgeTo;
+        private int[] seam;
+
+        private int[] pixels(int length) {
+            if (pixels == null || pixels.length < length) {
+                pixels = new int[length];
+            }
+            return pixels;
+        }
+
+        private byte[] luminance(int length) {
+            if (luminance == null || luminance.length < length) {
+                luminance = new byte[length];
+            }
+            return luminance;
+        }
+
+        private double[] energy(int length) {
+            if (energy == null || energy.length < length) {
+                energy = new double[length];
+            }
+            return energy;
+        }
+
+        private float[] energyFloat(int length) {
+            if (energyFloat == null || energyFloat.length < length) {
+                energyFloat = new float[length];
+            }
+            return energyFloat;
+        }
+
+        private double[] distTo(int length) {
+            if (distTo == null || distTo.length < length) {
+                distTo = new double[length];
+            }
+            return distTo;
+        }
+
+        private byte[] edgeTo(int length) {
+            if (edgeTo == null || edgeTo.length < length) {
+                edgeTo = new byte[length];
+            }
+            return edgeTo;
+        }
+
+        private int[] seam(int length) {
+            if (seam == null || seam.length < length) {
+                seam = new int[length];
+            }
+            return seam;
+        }
+    }
+
+    /**
+     * Read only view of the picture at some point of an asynchronous resize.
+     * Taking one does not copy the pixels, the carver stops writing to the
+     * buffer it shares with the snapshot.
+     */
+    public static final class Snapshot {
+
+        private final int[] pixels;
+        private final int stride;
+        private final int width;
+        private final int height;
+
+        private Snapshot(int[] pixels, int stride, int width, int height) {
+            this.pixels = pixels;
+            this.stride = stride;
+            this.width = width;
+            this.height = height;
+        }
+
+        public int width() {
+            return width;
+        }
+
+        public int height() {
+            return height;
+        }
+
+        /**
+         * Packed ARGB value of pixel (x, y).
+         *
+         * @param x
+         * @param y
+         * @return
+         */
+        public int getRGB(int x, int y) {
+            if (x < 0 || x >= width || y < 0 || y >= height) {
+                throw new java.lang.IllegalArgumentException("pixel out of range:"
+                        + " x=" + x + ", y=" + y);
+            }
+            return pixels[y * stride + x];
+        }
+
+        /**
+         * Copy the snapshot into a new picture.
+         *
+         * @return
+         */
+        public Picture picture() {
+            Picture p = new Picture(width, height);
+            for (int j = 0; j < height; j++) {
+                for (int i = 0; i < width; i++) {
+                    p.setRGB(i, j, pixels[j * stride + i]);
+                }
+            }
+            return p;
+        }
+    }
+
+    // every pixel in a seam row only depends on the seam row above, so a row
+    // can be split into chunks and relaxed in parallel
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 512;
+    private boolean parallel = false;
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    /**
+     * Relax a chunk of a seam row, splitting it in half until the chunk is
+     * no larger than the parallel threshold.
+     */
+    private class RelaxRowTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int row;
+        private final boolean vertical;
+
+        public RelaxRowTask(int from, int to, int row, boolean vertical) {
+            this.from = from;
+            this.to = to;
+            this.row = row;
+            this.vertical = vertical;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= parallelThreshold) {
+                relaxRow(from, to, row, vertical);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RelaxRowTask(from, mid, row, vertical),
+                        new RelaxRowTask(mid, to, row, vertical));
+            }
+        }
+    }
+
+    public SeamCarver(Picture picture) {
+        // create a seam carver object based on the given picture
+        this(picture, new DualGradientEnergy());
+    }
+
+    /**
+     * Create a seam carver object using the given energy function.
+     *
+     * @param picture
+     * @param energyFunction
+     */
+    public SeamCarver(Picture picture, EnergyFunction energyFunction) {
+        this(picture, energyFunction, new Buffers());
+    }
+
+    /**
+     * Create a seam carver object using the given energy function, working in
+     * (and growing) the given buffers.
+     *
+     * @param picture
+     * @param energyFunction
+     * @param buffers
+     */
+    public SeamCarver(Picture picture, EnergyFunction energyFunction, Buffers buffers) {
+
+        if (picture == null) {
+            throw new java.lang.IllegalArgumentException("input picture cannot be null");
+        }
+
+        if (energyFunction == null) {
+            throw new java.lang.IllegalArgumentException("input energy function cannot be null");
+        }
+        this.energyFunction = energyFunction;
+
+        if (buffers == null) {
+            throw new java.lang.IllegalArgumentException("input buffers cannot be null");
+        }
+        this.buffers = buffers;
+
+        // defensive copy, as we can't mutate the input
+        picWidth = picture.width();
+        picHeight = picture.height();
+        stride = picWidth;
+        pixels = buffers.pixels(picWidth * picHeight);
+
+        for (int j = 0; j < picHeight; j++) {
+            for (int i = 0; i < picWidth; i++) {
+                pixels[j * stride + i] = picture.getRGB(i, j);
+            }
+        }
+
+        if (energyFunction.usesLuminance()) {
+            computeLuminance();
+        }
+    }
+
+    /**
+     * Copy another carver's picture and energy map. The copy has its own
+     * pixel arrays but shares the seam search scratch arrays (distTo, edgeTo)
+     * with the original, so only one of them may search for a seam at a time.
+     *
+     * @param other
+     */
+    private SeamCarver(SeamCarver other) {
+
+        energyFunction = other.energyFunction;
+        precision = other.precision;
+        parallel = other.parallel;
+        parallelThreshold = other.parallelThreshold;
+
+        buffers = new Buffers();
+        buffers.distTo = other.buffers.distTo;
+        buffers.edgeTo = other.buffers.edgeTo;
+
+        picWidth = other.picWidth;
+        picHeight = other.picHeight;
+        stride = other.stride;
+        pixels = buffers.pixels = Arrays.copyOf(other.pixels, stride * picHeight);
+
+        if (other.luminance != null) {
+            luminance = buffers.luminance = Arrays.copyOf(other.luminance, stride * picHeight);
+        }
+
+        if (other.energy != null) {
+            energy = buffers.energy = Arrays.copyOf(other.energy, stride * picHeight);
+        }
+
+        if (other.energyFloat != null) {
+            energyFloat = buffers.energyFloat = Arrays.copyOf(other.energyFloat, stride * picHeight);
+        }
+
+        maskWords = other.maskWords;
+        if (other.protectMask != null) {
+            protectMask = other.protectMask.clone();
+        }
+        if (other.removeMask != null) {
+            removeMask = other.removeMask.clone();
+        }
+    }
+
+    /**
+     * Compute the luminance plane from the pixels.
+     */
+    private void computeLuminance() {
+        luminance = buffers.luminance(stride * picHeight);
+        for (int index = 0; index < stride * picHeight; index++) {
+            luminance[index] = (byte) luminance(pixels[index]);
+        }
+    }
+
+    /**
+     * Luminance of a pixel (0 - 255), Rec. 601 weights.
+     *
+     * @param rgb
+     * @return
+     */
+    private static int luminance(int rgb) {
+        int red   = (rgb >> 16) & 0xFF;
+        int green = (rgb >>  8) & 0xFF;
+        int blue  = (rgb >>  0) & 0xFF;
+
+        return (299 * red + 587 * green + 114 * blue) / 1000;
+    }
+
+    public Picture picture() {
+        // current picture
+
+        if (picture == null) {
+            Picture p = new Picture(picWidth, picHeight);
+            for (int j = 0; j < picHeight; j++) {
+                for (int i = 0; i < picWidth; i++) {
+                    p.setRGB(i, j, pixels[j * stride + i]);
+                }
+            }
+            picture = p;
+        }
+
+        return new Picture(picture);
+    }
+
+    public int width() {
+        // width of current picture
+        return picWidth; //columns
+    }
+
+    public int height() {
+        // height of current picture
+        return picHeight; //rows
+    }
+
+    /**
+     * Turn parallel seam finding on or off for this instance (off by default).
+     * The seams found are the same either way.
+     *
+     * @param parallel
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Seam rows with fewer pixels than the threshold are relaxed on the
+     * calling thread, larger ones are split into chunks of at most this many
+     * pixels.
+     *
+     * @param threshold
+     */
+    public void setParallelThreshold(int threshold) {
+        if (threshold <= 0) {
+            throw new java.lang.IllegalArgumentException("threshold must be positive");
+        }
+        this.parallelThreshold = threshold;
+    }
+
+    /**
+     * Set how the energy map is stored, DOUBLE by default. Changing it drops
+     * the current energy map.
+     *
+     * @param precision
+     */
+    public void setPrecision(Precision precision) {
+        if (precision == null) {
+            throw new java.lang.IllegalArgumentException("precision cannot be null");
+        }
+        if (precision != this.precision) {
+            this.precision = precision;
+            clearEnergyMap();
+        }
+    }
+
+    /**
+     * Bias the seams with a protect and/or a remove mask. Both are packed
+     * bitsets over the current picture, pixel (x, y) is bit y * width() + x,
+     * i.e. bit (i & 63) of word i >>> 6. Protected pixels get a large energy
+     * so seams go around them, pixels to remove get a large negative energy
+     * so seams go through them (a pixel in both masks is removed). Either
+     * mask may be null. The masks shrink with the picture as seams are
+     * removed, and energy() includes the bias. Inserting seams clears them.
+     *
+     * @param protect
+     * @param remove
+     */
+    public void setMask(long[] protect, long[] remove) {
+
+        int words = (picWidth * picHeight + 63) >>> 6;
+        if ((protect != null && protect.length < words)
+                || (remove != null && remove.length < words)) {
+            throw new java.lang.IllegalArgumentException("mask needs at least "
+                    + words + " words");
+        }
+
+        long[] oldProtect = protectMask;
+        long[] oldRemove = removeMask;
+
+        maskWords = (stride + 63) >>> 6;
+        protectMask = toRowMask(protect);
+        removeMask = toRowMask(remove);
+
+        // only the pixels that were or are masked need a new energy
+        if (hasEnergyMap()) {
+            updateMaskedEnergy(oldProtect);
+            updateMaskedEnergy(oldRemove);
+            updateMaskedEnergy(protectMask);
+            updateMaskedEnergy(removeMask);
+        }
+    }
+
+    /**
+     * Remove the protect and remove masks.
+     */
+    public void clearMask() {
+        setMask(null, null);
+    }
+
+    /**
+     * Convert a caller's packed mask to one word aligned row per picture row.
+     *
+     * @param packed
+     * @return
+     */
+    private long[] toRowMask(long[] packed) {
+
+        if (packed == null) {
+            return null;
+        }
+
+        long[] rows = new long[maskWords * picHeight];
+        int bits = picWidth * picHeight;
+        for (int w = 0; w < packed.length && (w << 6) < bits; w++) {
+            long word = packed[w];
+            while (word != 0) {
+                int bit = (w << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                if (bit < bits) {
+                    int y = bit / picWidth;
+                    int x = bit % picWidth;
+                    rows[y * maskWords + (x >>> 6)] |= 1L << (x & 63);
+                }
+            }
+        }
+        return rows;
+    }
+
+    private boolean hasMask() {
+        return protectMask != null || removeMask != null;
+    }
+
+    private static boolean testBit(long[] mask, int rowWord, int x) {
+        return mask != null && ((mask[rowWord + (x >>> 6)] >>> (x & 63)) & 1) != 0;
+    }
+
+    /**
+     * Energy added to a pixel by the masks.
+     *
+     * @param x
+     * @param y
+     * @return
+     */
+    private double maskBias(int x, int y) {
+        if (testBit(removeMask, y * maskWords, x)) {
+            return REMOVE_BIAS;
+        }
+        if (testBit(protectMask, y * maskWords, x)) {
+            return PROTECT_BIAS;
+        }
+        return 0;
+    }
+
+    /**
+     * Add the mask bias to one row of energies.
+     *
+     * @param j
+     * @param target
+     * @param offset the energy of pixel index goes to target[index - offset]
+     */
+    private void applyMaskRow(int j, double[] target, int offset) {
+        int rowStart = j * stride - offset;
+        int rowWord = j * maskWords;
+        for (int w = 0; w < maskWords; w++) {
+            long remove = removeMask == null ? 0 : removeMask[rowWord + w];
+            long protect = protectMask == null ? 0 : protectMask[rowWord + w] & ~remove;
+            addBias(target, rowStart + (w << 6), remove, REMOVE_BIAS);
+            addBias(target, rowStart + (w << 6), protect, PROTECT_BIAS);
+        }
+    }
+
+    private static void addBias(double[] target, int start, long bits, double bias) {
+        while (bits != 0) {
+            target[start + Long.numberOfTrailingZeros(bits)] += bias;
+            bits &= bits - 1;
+        }
+    }
+
+    /**
+     * Recompute the energy of every pixel set in a (row aligned) mask.
+     *
+     * @param mask
+     */
+    private void updateMaskedEnergy(long[] mask) {
+        if (mask == null) {
+            return;
+        }
+        for (int j = 0; j < picHeight; j++) {
+            for (int w = 0; w < maskWords; w++) {
+                long word = mask[j * maskWords + w];
+                while (word != 0) {
+                    int x = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    if (x < picWidth) {
+                        updateEnergy(x, j);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Helper method to check if indices are valid.
+     *
+     * @param x
+     * @param y
+     */
+    private void checkIndices(int row, int col) {
+        if (row < 0 || col < 0 || row >= picWidth || col >= picHeight) {
+            throw new java.lang.IllegalArgumentException("checkIndices invalid input:"
+                    + " row=" + row + ", y=" + col);
+        }
+    }
+
+    /**
+     * Compute the energy of an input pixel (only if valid, does input checking
+     * on the input indices). Uses the energy map if we have one.
+     *
+     * @param row
+     * @param col
+     * @return computed energy or the border energy (if pixel is on border)
+     */
+    public double energy(int row, int col) {
+
+        checkIndices(row, col);
+
+        if (!hasEnergyMap()) {
+            // rounded like an entry of the map would be
+            double e = pixelEnergy(row, col) + maskBias(row, col);
+            return precision == Precision.FLOAT ? (float) e : e;
+        }
+        return energyAt(col * stride + row);
+    }
+
+    private boolean hasEnergyMap() {
+        return energy != null || energyFloat != null;
+    }
+
+    private void clearEnergyMap() {
+        energy = null;
+        energyFloat = null;
+    }
+
+    /**
+     * Energy map entry, whatever the precision.
+     *
+     * @param index
+     * @return
+     */
+    private double energyAt(int index) {
+        return energy != null ? energy[index] : energyFloat[index];
+    }
+
+    /**
+     * Compute the energy of a pixel, ignoring the energy map and the masks.
+     *
+     * @param row
+     * @param col
+     * @return
+     */
+    private double pixelEnergy(int row, int col) {
+
+        // check if on border
+        if (row == 0 || row == picWidth - 1 || col == 0
+                || col == picHeight - 1) {
+            return energyFunction.borderEnergy();
+        } else {
+            return energyFunction.energy(pixels, luminance, col * stride + row, stride);
+        }
+    }
+
+    /**
+     * Compute the energy of every pixel into the energy map.
+     */
+    private void computeEnergyMap() {
+
+        if (precision == Precision.DOUBLE) {
+            energy = buffers.energy(stride * picHeight);
+        } else {
+            energyFloat = buffers.energyFloat(stride * picHeight);
+            energyRow = new double[stride];
+        }
+
+        for (int j = 0; j < picHeight; j++) {
+            computeEnergyRow(j);
+        }
+        energyRow = null;
+    }
+
+    /**
+     * Compute the energy of one row into the energy map, the interior pixels
+     * are handed to the energy function in one go.
+     *
+     * @param j
+     */
+    private void computeEnergyRow(int j) {
+
+        int rowStart = j * stride;
+        double border = energyFunction.borderEnergy();
+
+        // the float map is computed at full precision one row at a time,
+        // then rounded
+        double[] target = energy != null ? energy : energyRow;
+        int offset = energy != null ? 0 : rowStart;
+
+        if (j == 0 || j == picHeight - 1 || picWidth <= 2) {
+            Arrays.fill(target, rowStart - offset, rowStart - offset + picWidth, border);
+        } else {
+            target[rowStart - offset] = border;
+            target[rowStart - offset + picWidth - 1] = border;
+            energyFunction.energyRow(pixels, luminance, rowStart + 1,
+                    rowStart + picWidth - 1, stride, target, offset);
+        }
+
+        if (hasMask()) {
+            applyMaskRow(j, target, offset);
+        }
+
+        if (energy == null) {
+            for (int i = 0; i < picWidth; i++) {
+                energyFloat[rowStart + i] = (float) energyRow[i];
+            }
+        }
+    }
+
+    public int[] findHorizontalSeam() {
+        // sequence of indices for horizontal seam
+        return findSeam(false, new int[picWidth]);
+    }
+
+    public int[] findVerticalSeam() {
+        return findSeam(true, new int[picHeight]);
+    }
+
+    /**
+     * Map seam space to a picture x coordinate.
+     *
+     * @param seamCol
+     * @param seamRow
+     * @param vertical
+     * @return
+     */
+    private static int toX(int seamCol, int seamRow, boolean vertical) {
+        return vertical ? seamCol : seamRow;
+    }
+
+    /**
+     * Map seam space to a picture y coordinate.
+     *
+     * @param seamCol
+     * @param seamRow
+     * @param vertical
+     * @return
+     */
+    private static int toY(int seamCol, int seamRow, boolean vertical) {
+        return vertical ? seamRow : seamCol;
+    }
+
+    /**
+     * Find a seam. All the work is done in seam space, see the class comment.
+     *
+     * @param vertical true for a vertical seam, false for a horizontal seam
+     * @param path filled with the seam, may be longer than the seam
+     * @return path
+     */
+    private int[] findSeam(boolean vertical, int[] path) {
+
+        int width = vertical ? picWidth : picHeight;
+        int height = vertical ? picHeight : picWidth;
+
+        if (!hasEnergyMap()) {
+            computeEnergyMap();
+        }
+
+        // every pixel is overwritten by relaxRow, no need to clear these
+        distTo = buffers.distTo(2 * width);
+        edgeTo = buffers.edgeTo(width * height);
+
+        // iterate through each pixel in topological order
+        // one seam row at a time, each pixel pulls from its three parents in
+        // the row above so the pixels of a row are independent
+        boolean inParallel = parallel && width > parallelThreshold;
+        for (int j = 0; j < height; j++) {
+
+            checkCancelled();
+
+            if (inParallel) {
+                ForkJoinPool.commonPool().invoke(new RelaxRowTask(0, width, j, vertical));
+            } else {
+                relaxRow(0, width, j, vertical);
+            }
+        }
+
+        //everything is relaxed, distTo of the bottom row already holds the
+        //energy of the shortest path ending there. Ties go to the leftmost
+        //end, but distTo sums the energies top down (without the first
+        //pixel) so paths of (nearly) equal energy can compare differently
+        //than when each path was summed bottom up, picking another seam
+        double minEnergy = Double.POSITIVE_INFINITY;
+        int minIndex = -1;
+
+        int last = ((height - 1) & 1) * width;
+        for (int i = 0; i < width; i++) {
+            double e = distTo[last + i];
+            if (minEnergy > e) {
+                minEnergy = e;
+                minIndex = i;
+            }
+        }
+
+        // found the min vertex at the bottom of the image
+        // provide the min path in order by following edgeTo up
+        for (int j = height - 1; j >= 0; j--) {
+            path[j] = minIndex;
+            minIndex += edgeTo[j * width + minIndex];
+        }
+
+        // distTo starts at zero, add the energy of the first pixel as well
+        seamEnergy = minEnergy + energyAt(toY(path[0], 0, vertical) * stride + toX(path[0], 0, vertical));
+
+        return path;
+    }
+
+    /**
+     * Relax the pixels [from, to) of a seam row: pull into each pixel from
+     * its parents (i-1, j-1), (i, j-1) and (i+1, j-1). See Lecture Notes
+     * "Shortest Path Properties" p. 20. Parents are tried left to right and
+     * only a strictly shorter path wins, which picks the same parent as
+     * relaxing the edges out of each parent in topological order.
+     *
+     * @param from
+     * @param to
+     * @param row
+     * @param vertical
+     */
+    private void relaxRow(int from, int to, int row, boolean vertical) {
+
+        int width = vertical ? picWidth : picHeight;
+
+        // where the seam row starts in the energy map, and the step between
+        // seam columns
+        int energyStart = vertical ? row * stride : row;
+        int energyStep = vertical ? 1 : stride;
+
+        // distTo keeps two seam rows, flip between them
+        int current = (row & 1) * width;
+        int above = ((row + 1) & 1) * width;
+        int edges = row * width;
+
+        // locals, so the JIT can hoist the precision check out of the loop
+        double[] energyDouble = energy;
+        float[] energySingle = energyFloat;
+
+        for (int i = from; i < to; i++) {
 
-    public SeamCarver(Picture picture) {
-        // create a seam carver object based on the given picture
+            double e = energyDouble != null
+                    ? energyDouble[energyStart + i * energyStep]
+                    : energySingle[energyStart + i * energyStep];
 
-        if (picture == null) {
-            throw new java.lang.IllegalArgumentException("input picture cannot be null");
+            //initialize top row with zero distance
+            if (row == 0) {
+                distTo[current + i] = 0;
+                edgeTo[edges + i] = 0;
+                continue;
+            }
+
+            double minDist = Double.POSITIVE_INFINITY;
+            int parent = 0;
+
+            if (i > 0 && minDist > distTo[above + i - 1] + e) {
+                minDist = distTo[above + i - 1] + e;
+                parent = -1;
+            }
+
+            if (minDist > distTo[above + i] + e) {
+                minDist = distTo[above + i] + e;
+                parent = 0;
+            }
+
+            if (i + 1 < width && minDist > distTo[above + i + 1] + e) {
+                minDist = distTo[above + i + 1] + e;
+                parent = 1;
+            }
+
+            distTo[current + i] = minDist;
+            edgeTo[edges + i] = (byte) parent;
         }
-        // defensive copy, as we can't mutate the input
-        this.picture = new Picture(picture);
     }
 
-    public Picture picture() {
-        // current picture
-        
-        // transpose back if needed
-        if (transposed) {
-            transposePicture();
-        }
-        
-        return new Picture(picture);
+    public void removeHorizontalSeam(int[] seam) {
+        checkSeam(seam, false);
+        removeSeam(seam, false);
     }
 
-    public int width() {
-        // width of current picture
-        
-        if (transposed) {
-            return picture.height();
-        }
+    public void removeVerticalSeam(int[] seam) {
+        checkSeam(seam, true);
+        removeSeam(seam, true);
+    }
 
-        return picture.width(); //columns
+    /**
+     * Remove k horizontal seams, one at a time, giving the same result as
+     * calling findHorizontalSeam() and removeHorizontalSeam() k times.
+     *
+     * @param k
+     */
+    public void removeHorizontalSeams(int k) {
+        removeSeams(k, false);
     }
 
-    public int height() {
-        // height of current picture
+    /**
+     * Remove k vertical seams, one at a time, giving the same result as
+     * calling findVerticalSeam() and removeVerticalSeam() k times.
+     *
+     * @param k
+     */
+    public void removeVerticalSeams(int k) {
+        removeSeams(k, true);
+    }
+
+    /**
+     * Shrink the picture to the given size, removing vertical seams first and
+     * then horizontal seams.
+     *
+     * @param width
+     * @param height
+     * @return the resized picture
+     */
+    public Picture resizeTo(int width, int height) {
 
-        if (transposed) {
-            return picture.width();
+        if (width < 1 || width > picWidth || height < 1 || height > picHeight) {
+            throw new java.lang.IllegalArgumentException("resizeTo invalid input:"
+                    + " width=" + width + ", height=" + height);
         }
-        
-        return picture.height(); //rows
+
+        removeSeams(picWidth - width, true);
+        removeSeams(picHeight - height, false);
+
+        return picture();
     }
 
     /**
-     * Helper method to check if indices are valid.
+     * Find a horizontal seam on the common pool. See submit for how
+     * asynchronous requests are ordered and cancelled.
      *
-     * @param x
-     * @param y
+     * @return the seam, cancelled if a newer request comes in first
      */
-    private void checkIndices(int row, int col) {
-        if (row < 0 || col < 0 || row >= picture.width() || col >= picture.height()) {
-            throw new java.lang.IllegalArgumentException("checkIndices invalid input:"
-                    + " row=" + row + ", y=" + col);
-        }
+    public CompletableFuture<int[]> findHorizontalSeamAsync() {
+        return submit(() -> findSeam(false, new int[picWidth]));
     }
 
     /**
-     * Return true of the indices are valid, false otherwise.
-     * 
-     * @param row
-     * @param col
-     * @return 
+     * Find a vertical seam on the common pool. See submit for how
+     * asynchronous requests are ordered and cancelled.
+     *
+     * @return the seam, cancelled if a newer request comes in first
      */
-    private boolean checkIfIndicesValid(int row, int col) {
-        return !(row < 0 || col < 0 || row >= picture.width() || col >= picture.height());
+    public CompletableFuture<int[]> findVerticalSeamAsync() {
+        return submit(() -> findSeam(true, new int[picHeight]));
     }
 
     /**
-     * Helper method to compute the energy of a pixel if not already done so.
-     * Assumes that the input energy array is initialized / filled with
-     * ENERGY_INIT_VALUE.
+     * Shrink the picture to the given size on the common pool, like resizeTo.
+     * A newer request cancels this one between seams (or within a seam
+     * search), the seams removed so far stay removed, so e.g. dragging a
+     * window smaller can just ask for the latest size every time. The
+     * progress can be watched with snapshot().
      *
-     * @param row
-     * @param col
-     * @param energy
+     * @param width
+     * @param height
+     * @return the resized picture, cancelled if a newer request comes in first
      */
-    private void computeEnergy(int row, int col, double[][] energy) {
-        
-        // only compute if not done already
-        if (energy[row][col] == ENERGY_INIT_VALUE) {
-            energy[row][col] = energyNoTranspose(row, col);
-        }
+    public CompletableFuture<Picture> resizeToAsync(int width, int height) {
+        return submit(() -> {
+            if (width < 1 || width > picWidth || height < 1 || height > picHeight) {
+                throw new java.lang.IllegalArgumentException("resizeTo invalid input:"
+                        + " width=" + width + ", height=" + height);
+            }
+
+            lastSnapshot = System.nanoTime() - SNAPSHOT_INTERVAL;
+            publishSnapshotIfDue();
+            while (picWidth > width) {
+                removeSeams(1, true);
+                publishSnapshotIfDue();
+            }
+            while (picHeight > height) {
+                removeSeams(1, false);
+                publishSnapshotIfDue();
+            }
+            publishSnapshot();
+
+            return picture();
+        });
     }
 
     /**
-     * Compute the energy of an input pixel (only if valid, does input checking
-     * on the input indices).
+     * The latest picture published by an asynchronous resize, safe to call
+     * from any thread while it runs. Does not copy the pixels. Also asks the
+     * resize for a newer one, published after the seam it is working on, so
+     * polling this e.g. once per frame shows the progress.
      *
-     * @param row
-     * @param col
-     * @return computed energy or BORDER_ENERGY (if pixel is on border)
+     * @return the snapshot, null if no asynchronous resize has published one
+     * yet
      */
-    public double energy(int row, int col) {
-        
-        if(transposed) {
-            return energyNoTranspose(col, row);
-        } else {
-            return energyNoTranspose(row, col);
-        }
+    public Snapshot snapshot() {
+        snapshotRequested = true;
+        return snapshot;
     }
-    
+
     /**
-     * Helper used without the transpose flag. 
-     * 
-     * @param row
-     * @param col
-     * @return 
+     * Future of an asynchronous request. It is only completed by the thread
+     * running the request, after that thread is done with the carver.
+     * Cancelling it while the request runs asks the request to stop and
+     * waits until it has (at most the rest of a seam row, or of the seam
+     * being removed), so once the future is done, however it got done, the
+     * carver is no longer in use.
      */
-    private double energyNoTranspose(int row, int col) {
-        
-        // energy of pixel at column x and row y
-        checkIndices(row, col);
+    private static final class Request<T> extends CompletableFuture<T> {
 
-        // check if on border
-        if (row == 0 || row == picture.width() - 1 || col == 0 
-                || col == picture.height() - 1) {
-            return BORDER_ENERGY;
-        } else {
-            double x_e = computeEnergy(row + 1, col    , row - 1, col);
-            double y_e = computeEnergy(row    , col + 1, row    , col - 1);
+        private volatile boolean cancelRequested;
+        private boolean running; // guarded by this
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancelRequested = true;
+            boolean interrupted = false;
+            synchronized (this) {
+                while (running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return super.cancel(false);
+        }
+
+        /**
+         * @return false if the request was cancelled before it started
+         */
+        private synchronized boolean start() {
+            running = !cancelRequested && !isDone();
+            return running;
+        }
 
-            return Math.sqrt(x_e + y_e);
-        } 
+        private synchronized void stop() {
+            running = false;
+            notifyAll();
+        }
     }
 
     /**
-     * Compute and return the energy of a non-border pixel. Helper method that
-     * only computes a single direction (delta X or delta Y).
+     * Run a request after every earlier one. Requests are cheap to cancel:
+     * a stale request still waiting is skipped, a running one stops at the
+     * next seam row. Cancelling the returned future stops it the same way.
+     * The carver must not be used directly (only snapshot() and new
+     * asynchronous requests) until the returned future is done, see Request.
      *
-     * @param x1
-     * @param y1
-     * @param x2
-     * @param y2
+     * @param work
      * @return
      */
-    private double computeEnergy(int x1, int y1, int x2, int y2) {
-
-        int rgb     = picture.getRGB(x1, y1);
-        int red_1   = (rgb >> 16) & 0xFF;
-        int green_1 = (rgb >>  8) & 0xFF;
-        int blue_1  = (rgb >>  0) & 0xFF;
+    private synchronized <T> CompletableFuture<T> submit(Supplier<T> work) {
+        int requestGeneration = generation.incrementAndGet();
+        Request<T> result = new Request<>();
+        asyncTail = asyncTail.handleAsync((ignored, error) -> {
+            run(requestGeneration, work, result);
+            return null;
+        });
+        return result;
+    }
 
-        rgb         = picture.getRGB(x2, y2);
-        int red_2   = (rgb >> 16) & 0xFF;
-        int green_2 = (rgb >>  8) & 0xFF;
-        int blue_2  = (rgb >>  0) & 0xFF;
+    /**
+     * Run one request on the current thread, completing its future.
+     *
+     * @param requestGeneration
+     * @param work
+     * @param result
+     */
+    private <T> void run(int requestGeneration, Supplier<T> work, Request<T> result) {
 
-        return Math.pow(red_1 - red_2, 2)
-                + Math.pow(blue_1 - blue_2, 2)
-                + Math.pow(green_1 - green_2, 2);
-    }
+        if (requestGeneration != generation.get() || !result.start()) {
+            result.cancel(false);
+            return;
+        }
 
-    public int[] findHorizontalSeam() {
-        // sequence of indices for horizontal seam
+        //complete only after stop(), the future's callbacks may use the
+        //carver (or cancel the future) right away
+        asyncGeneration = requestGeneration;
+        asyncResult = result;
+        T value = null;
+        RuntimeException error = null;
+        try {
+            value = work.get();
+        } catch (RuntimeException e) {
+            error = e;
+        } finally {
+            asyncGeneration = 0;
+            asyncResult = null;
+            result.stop();
+        }
 
-        // transpose the image if not done so already
-        if (!transposed) {
-            transposePicture();
+        if (error instanceof CancellationException) {
+            result.cancel(false);
+        } else if (error != null) {
+            result.completeExceptionally(error);
+        } else {
+            result.complete(value);
         }
+    }
 
-        int path[] = findSeam(); //don't transpose, the above takes care of that logic
+    /**
+     * Throw if this is running an asynchronous request that is stale or has
+     * been cancelled. Nothing has been changed yet when findSeam throws, so
+     * the carver is left as it was after the last seam.
+     */
+    private void checkCancelled() {
+        if (asyncGeneration != 0
+                && (asyncGeneration != generation.get() || asyncResult.cancelRequested)) {
+            throw new CancellationException();
+        }
+    }
 
-        return path;
+    /**
+     * Publish a snapshot if one has been asked for and the last one is at
+     * least SNAPSHOT_INTERVAL old.
+     */
+    private void publishSnapshotIfDue() {
+        if (snapshotRequested && System.nanoTime() - lastSnapshot >= SNAPSHOT_INTERVAL) {
+            publishSnapshot();
+        }
     }
 
-    public int[] findVerticalSeam() {
-        
-        if (transposed) {
-            transposePicture();
+    /**
+     * Publish the current picture as a snapshot sharing the pixel buffer.
+     * The buffer is no longer handed on through the Buffers either.
+     */
+    private void publishSnapshot() {
+        if (buffers.pixels == pixels) {
+            buffers.pixels = null;
         }
-        
-        return findSeam();
+        pixelsShared = true;
+        snapshotRequested = false;
+        lastSnapshot = System.nanoTime();
+        snapshot = new Snapshot(pixels, stride, picWidth, picHeight);
     }
-    
+
     /**
-     * Find the vertical seam
-     * @param transpose if true then transpose the image if needed
-     * @return 
+     * Copy the pixels before changing them if a snapshot still shares them.
      */
-    private int[] findSeam() {
+    private void ownPixels() {
+        if (pixelsShared) {
+            pixels = buffers.pixels = Arrays.copyOf(pixels, stride * picHeight);
+            pixelsShared = false;
+        }
+    }
 
-        int width = picture.width();
-        int height = picture.height();
-        
-        double[][] energy = new double[width][height];
-        double[][] distTo = new double[width][height];
-        Integer[][] edgeTo = new Integer[width][height];
+    /**
+     * Shrink the picture to the given size, removing vertical and horizontal
+     * seams in the order that removes the least total seam energy.
+     *
+     * This is the transport map dynamic program from Avidan and Shamir,
+     * "Seam Carving for Content-Aware Image Resizing". T(r, c) is the least
+     * energy of removing r horizontal and c vertical seams:
+     *
+     *   T(r, c) = min(T(r - 1, c) + E(horizontal seam of I(r - 1, c)),
+     *                 T(r, c - 1) + E(vertical seam of I(r, c - 1)))
+     *
+     * where I(r, c) is the picture left after the best order. The table is
+     * filled one row of r at a time, so only the pictures of the previous
+     * and current row are kept. Only the direction taken into each cell is
+     * remembered, and the best order is then replayed on this carver.
+     *
+     * Much more expensive than resizeTo: every cell copies a picture and
+     * searches up to two seams.
+     *
+     * @param width
+     * @param height
+     * @return the resized picture
+     */
+    public Picture retarget(int width, int height) {
 
-        for (int i = 0; i < width; i++) {
-            Arrays.fill(distTo[i], Double.POSITIVE_INFINITY);
-            Arrays.fill(energy[i], ENERGY_INIT_VALUE);
-            Arrays.fill(edgeTo[i], null);
+        if (width < 1 || width > picWidth || height < 1 || height > picHeight) {
+            throw new java.lang.IllegalArgumentException("retarget invalid input:"
+                    + " width=" + width + ", height=" + height);
         }
 
-        // iterate through each pixel in topological order
-        // start at the leftmost column and sweep to the right
-        // then go to the next row down
-        for (int j = 0; j < height; j++) {
+        int rows = picHeight - height; // horizontal seams to remove
+        int cols = picWidth - width; // vertical seams to remove
 
-            for (int i = 0; i < width; i++) {
+        // fromLeft[r][c] is true if the best way into cell (r, c) removes a
+        // vertical seam from (r, c - 1), false if it removes a horizontal
+        // seam from (r - 1, c)
+        boolean[][] fromLeft = new boolean[rows + 1][cols + 1];
+
+        TransportCell[] previous = new TransportCell[cols + 1];
+        TransportCell[] current = new TransportCell[cols + 1];
+
+        for (int r = 0; r <= rows; r++) {
+            for (int c = 0; c <= cols; c++) {
+
+                TransportCell parent;
+                double cost;
+                if (r == 0 && c == 0) {
+                    parent = null;
+                    cost = 0;
+                } else {
+                    double top = r > 0
+                            ? previous[c].cost + previous[c].horizontalEnergy
+                            : Double.POSITIVE_INFINITY;
+                    double left = c > 0
+                            ? current[c - 1].cost + current[c - 1].verticalEnergy
+                            : Double.POSITIVE_INFINITY;
+
+                    fromLeft[r][c] = left < top;
+                    parent = fromLeft[r][c] ? current[c - 1] : previous[c];
+                    cost = Math.min(left, top);
+                }
 
-                //initialize top row with zero distance
-                if (j == 0) {
-                    distTo[i][j] = 0;
+                // the last cell's picture is rebuilt by the replay below
+                if (r == rows && c == cols) {
+                    break;
                 }
 
-                computeEnergy(i, j, energy);
+                current[c] = new TransportCell(parent == null ? this : parent.carver,
+                        parent == null ? null : parent.seam(fromLeft[r][c]),
+                        fromLeft[r][c], cost, r < rows, c < cols);
+            }
 
-                // relax all edges pointing from this vertex (3)
-                // (i-1, j+1), (i, j+1), (i+1,j)
-                relaxPixelEdge(i - 1, j + 1, i, j, energy, distTo, edgeTo);
-                relaxPixelEdge(i    , j + 1, i, j, energy, distTo, edgeTo);
-                relaxPixelEdge(i + 1, j + 1, i, j, energy, distTo, edgeTo);
+            // roll the frontier, previous row's pictures are no longer needed
+            TransportCell[] swap = previous;
+            previous = current;
+            current = swap;
+            Arrays.fill(current, null);
+        }
 
+        // walk back from (rows, cols) for the order, then replay it
+        boolean[] order = new boolean[rows + cols];
+        for (int r = rows, c = cols, n = rows + cols - 1; n >= 0; n--) {
+            order[n] = fromLeft[r][c];
+            if (order[n]) {
+                c--;
+            } else {
+                r--;
             }
         }
 
-        //everything is relaxed, find shortest path by checking each vertex
-        double minEnergy = Double.POSITIVE_INFINITY;
-        Integer minIndex = -1;
-        int[] path = new int[height];
+        for (boolean vertical : order) {
+            removeSeams(1, vertical);
+        }
 
-        // calculate the min energy path by starting at the bottom of the image
-        // for each pixel in the last row
-        // this is done based on the relaxed method (edgeTo is populated with 
-        // the parent pixel -> row above)
-        for (int i = 0; i < width; i++) {
+        return picture();
+    }
+
+    /**
+     * A cell of the retarget transport map: the picture reached by the best
+     * order and the seams (and their energy) that lead out of it.
+     */
+    private static class TransportCell {
+
+        private final SeamCarver carver;
+        private final double cost;
+        private int[] verticalSeam;
+        private double verticalEnergy;
+        private int[] horizontalSeam;
+        private double horizontalEnergy;
 
-            int j = height - 1;
-            double e = energy[i][j]; //start at bottom
-            Integer edge = edgeTo[i][j];
+        /**
+         * @param from carver of the parent cell, copied
+         * @param seam seam to remove from the copy, null to keep it as is
+         * @param vertical direction of seam
+         * @param cost least energy to get here
+         * @param needHorizontal if the next row will need the horizontal seam
+         * @param needVertical if the next column will need the vertical seam
+         */
+        public TransportCell(SeamCarver from, int[] seam, boolean vertical, double cost,
+                boolean needHorizontal, boolean needVertical) {
 
-            //go through the whole path
-            while (edge != null) {
-                e += energy[edge][--j];
-                edge = edgeTo[edge][j];
+            if (!from.hasEnergyMap()) {
+                from.computeEnergyMap();
             }
 
-            if (minEnergy > e) {
-                minEnergy = e;
-                minIndex = i;
+            carver = new SeamCarver(from);
+            if (seam != null) {
+                carver.removeSeam(seam, vertical);
+            }
+            this.cost = cost;
+
+            if (needVertical) {
+                verticalSeam = carver.findSeam(true, new int[carver.picHeight]);
+                verticalEnergy = carver.seamEnergy;
+            }
+
+            if (needHorizontal) {
+                horizontalSeam = carver.findSeam(false, new int[carver.picWidth]);
+                horizontalEnergy = carver.seamEnergy;
             }
         }
 
-        // found the min vertex at the bottom of the image
-        // provide the min path in order
-        for (int j = height - 1; j >= 0; j--) {
-            path[j] = minIndex;
-            minIndex = edgeTo[minIndex][j];
+        public int[] seam(boolean vertical) {
+            return vertical ? verticalSeam : horizontalSeam;
         }
+    }
 
-        return path;
+    /**
+     * Find and remove k seams. Our own seams are valid so they skip
+     * checkSeam, and they all go through the same scratch buffer.
+     *
+     * @param k
+     * @param vertical
+     */
+    private void removeSeams(int k, boolean vertical) {
+
+        int width = vertical ? picWidth : picHeight;
+        if (k < 0 || k >= width) {
+            throw new java.lang.IllegalArgumentException("cannot remove " + k
+                    + " seams from " + width + " pixels");
+        }
+
+        if (seamBuffer == null || seamBuffer.length < Math.max(picWidth, picHeight)) {
+            seamBuffer = buffers.seam(Math.max(picWidth, picHeight));
+        }
+
+        for (int n = 0; n < k; n++) {
+            removeSeam(findSeam(vertical, seamBuffer), vertical);
+        }
+    }
+
+    /**
+     * Widen the picture by k pixels, duplicating the k vertical seams that
+     * would be removed first. See insertSeams.
+     *
+     * @param k
+     */
+    public void insertVerticalSeams(int k) {
+        insertSeams(k, true);
+    }
+
+    /**
+     * Heighten the picture by k pixels, duplicating the k horizontal seams
+     * that would be removed first. See insertSeams.
+     *
+     * @param k
+     */
+    public void insertHorizontalSeams(int k) {
+        insertSeams(k, false);
     }
 
     /**
-     * Relax an edge if the conditions are met. See Lecture Notes "Shortest Path
-     * Properties" p. 20
+     * Insert k seams. Inserting the lowest energy seam one at a time would
+     * find the same seam (or its copy) every time, so instead the k seams are
+     * found by removing them from a scratch copy of the picture, which only
+     * updates the energy next to each seam. Their positions in the current
+     * picture are tracked while they are removed, and then every one of
+     * them is duplicated in a single pass over the pixels. The inserted
+     * pixel is the average of the seam pixel and its right (lower) neighbour.
+     * Clears the protect / remove masks.
      *
-     * @param child_col
-     * @param child_row
-     * @param parent_col
-     * @param parent_row
-     * @param energy
-     * @param distTo
-     * @param edgeTo
+     * @param k number of seams, less than the width (height) of the picture
+     * @param vertical
      */
-    private void relaxPixelEdge(int child_col, int child_row, int parent_col,
-            int parent_row, double energy[][], double[][] distTo, Integer[][] edgeTo) {
+    private void insertSeams(int k, boolean vertical) {
+
+        int width = vertical ? picWidth : picHeight;
+        int height = vertical ? picHeight : picWidth;
+
+        if (k < 0 || k >= width) {
+            throw new java.lang.IllegalArgumentException("cannot insert " + k
+                    + " seams into " + width + " pixels");
+        }
 
-        if (checkIfIndicesValid(child_col, child_row)) {
-            
-            // calculate energy if we haven't already
-            computeEnergy(child_col, child_row, energy);
+        if (k == 0) {
+            return;
+        }
 
-            if (distTo[child_col][child_row] > distTo[parent_col][parent_row]
-                    + energy[child_col][child_row]) {
+        SeamCarver scratch = new SeamCarver(picture(), energyFunction);
+        scratch.setPrecision(precision);
+        scratch.setParallel(parallel);
+        scratch.setParallelThreshold(parallelThreshold);
 
-                // need to relax
-                distTo[child_col][child_row] = distTo[parent_col][parent_row]
-                        + energy[child_col][child_row];
-                
-                edgeTo[child_col][child_row] = parent_col;
+        // original seam column of every pixel left in the scratch picture,
+        // per seam row, shifted just like the pixels
+        int[][] original = new int[height][width];
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                original[j][i] = i;
             }
         }
-    }
 
-    public void removeHorizontalSeam(int[] seam) {
+        // duplicate[j][i] is true if seam column i of seam row j is on a seam
+        boolean[][] duplicate = new boolean[height][width];
+        int[] seam = new int[height];
 
-        // transpose the picture
-        if(!transposed) {
-            transposePicture();
+        for (int n = 0; n < k; n++) {
+            scratch.findSeam(vertical, seam);
+            for (int j = 0; j < height; j++) {
+                int toRemove = seam[j];
+                duplicate[j][original[j][toRemove]] = true;
+                System.arraycopy(original[j], toRemove + 1,
+                        original[j], toRemove, width - n - toRemove - 1);
+            }
+            scratch.removeSeam(seam, vertical);
         }
-        
-        removeSeam(seam);
-    }
 
-    public void removeVerticalSeam(int[] seam) {
+        int newWidth = vertical ? picWidth + k : picWidth;
+        int newHeight = vertical ? picHeight : picHeight + k;
+        int[] inserted = new int[newWidth * newHeight];
+
+        for (int j = 0; j < height; j++) {
+            int o = 0;
+            for (int i = 0; i < width; i++) {
+                int rgb = pixels[toY(i, j, vertical) * stride + toX(i, j, vertical)];
+                inserted[toY(o, j, vertical) * newWidth + toX(o, j, vertical)] = rgb;
+                o++;
+
+                if (duplicate[j][i]) {
+                    int next = i + 1 < width
+                            ? pixels[toY(i + 1, j, vertical) * stride + toX(i + 1, j, vertical)]
+                            : rgb;
+                    inserted[toY(o, j, vertical) * newWidth + toX(o, j, vertical)] = average(rgb, next);
+                    o++;
+                }
+            }
+        }
+
+        pixels = inserted;
+        buffers.pixels = inserted;
+        pixelsShared = false;
+        stride = newWidth;
+        picWidth = newWidth;
+        picHeight = newHeight;
 
-        if(transposed) {
-            transposePicture();
+        // every pixel may have moved, start the energy over
+        if (luminance != null) {
+            computeLuminance();
         }
-        
-        removeSeam(seam);
+        protectMask = null;
+        removeMask = null;
+        clearEnergyMap();
+        picture = null;
+    }
+
+    /**
+     * Average two pixels channel by channel, keeping the alpha of the first.
+     *
+     * @param rgb1
+     * @param rgb2
+     * @return
+     */
+    private static int average(int rgb1, int rgb2) {
+        int red   = (((rgb1 >> 16) & 0xFF) + ((rgb2 >> 16) & 0xFF)) / 2;
+        int green = (((rgb1 >>  8) & 0xFF) + ((rgb2 >>  8) & 0xFF)) / 2;
+        int blue  = (((rgb1 >>  0) & 0xFF) + ((rgb2 >>  0) & 0xFF)) / 2;
+
+        return (rgb1 & 0xFF000000) | (red << 16) | (green << 8) | blue;
     }
-    
+
     /**
-     * Remove a vertical seam.
-     * 
-     * @param seam 
+     * Throw if the seam is not a valid seam of the current picture.
+     *
+     * @param seam
+     * @param vertical true for a vertical seam, false for a horizontal seam
      */
-    private void removeSeam(int[] seam) {
-        
+    private void checkSeam(int[] seam, boolean vertical) {
+
+        int width = vertical ? picWidth : picHeight;
+        int height = vertical ? picHeight : picWidth;
+
         if (seam == null) {
             throw new java.lang.IllegalArgumentException();
         }
 
-        if (seam.length != picture.height()) {
+        if (seam.length != height) {
             throw new java.lang.IllegalArgumentException();
         }
 
-        if (picture.width() <= 1) {
+        if (width <= 1) {
             throw new java.lang.IllegalArgumentException();
         }
-        
-        int newWidth = picture.width() - 1;
-        Picture p = new Picture(newWidth, picture.height());
+
+        // validate the whole seam, the pixels are shifted in place
         int lastSeamIndex = -1;
-        
-        // remove vertical seam from current picture
-        for (int j = 0; j < picture.height(); j++) {
+        for (int j = 0; j < height; j++) {
 
             //check entry
             int toRemove = seam[j];
-            checkIndices(toRemove, j); //throw if input j is invalid
+            checkIndices(toX(toRemove, j, vertical), toY(toRemove, j, vertical)); //throw if input j is invalid
 
             //check distance of seam pixel
             if(lastSeamIndex != -1 && Math.abs(lastSeamIndex - toRemove) > 1) {
                 throw new java.lang.IllegalArgumentException();
             }
             lastSeamIndex = toRemove;
+        }
+    }
+
+    /**
+     * Remove a seam. The cached energy is shifted along with the pixels and
+     * only the two pixels next to the seam in each seam row are invalidated,
+     * every other pixel keeps the same neighbours.
+     *
+     * @param seam already checked, may be longer than the seam
+     * @param vertical true for a vertical seam, false for a horizontal seam
+     */
+    private void removeSeam(int[] seam, boolean vertical) {
+
+        int width = vertical ? picWidth : picHeight;
+        int height = vertical ? picHeight : picWidth;
 
-            int index = 0;
-            for (int i = 0; i < newWidth; i++) {
-                if (i == toRemove) {
-                    index++; //ignore this pixel
+        if (vertical) {
+            removeVerticalPixels(seam);
+        } else {
+            removeHorizontalPixels(seam);
+        }
+
+        if (hasEnergyMap()) {
+            for (int j = 0; j < height; j++) {
+                // neighbours of the removed pixel, the rest of the pixels
+                // kept their neighbours
+                int toRemove = seam[j];
+                if (toRemove > 0) {
+                    updateEnergy(toX(toRemove - 1, j, vertical), toY(toRemove - 1, j, vertical));
+                }
+                if (toRemove < width - 1) {
+                    updateEnergy(toX(toRemove, j, vertical), toY(toRemove, j, vertical));
                 }
-                p.setRGB(i, j, picture.getRGB(index++, j));
-                //TODO recompute energy?!?!?!?!
             }
         }
-        picture = p;
+        picture = null;
+    }
+
+    /**
+     * Recompute a single entry of the energy map.
+     *
+     * @param x
+     * @param y
+     */
+    private void updateEnergy(int x, int y) {
+        double e = pixelEnergy(x, y) + maskBias(x, y);
+        if (energy != null) {
+            energy[y * stride + x] = e;
+        } else {
+            energyFloat[y * stride + x] = (float) e;
+        }
+    }
+
+    /**
+     * Remove one bit from a row of a row aligned mask, shifting the bits
+     * after it down by one.
+     *
+     * @param mask
+     * @param rowWord first word of the row
+     * @param x
+     */
+    private void deleteMaskBit(long[] mask, int rowWord, int x) {
+
+        int w = rowWord + (x >>> 6);
+        int last = rowWord + maskWords - 1;
+        long low = (1L << (x & 63)) - 1;
+
+        long word = mask[w];
+        word = (word & low) | ((word >>> 1) & ~low);
+        for (; w < last; w++) {
+            mask[w] = word | (mask[w + 1] << 63);
+            word = mask[w + 1] >>> 1;
+        }
+        mask[w] = word;
+    }
+
+    /**
+     * Move the bit for (x, y + 1) of a row aligned mask to (x, y).
+     *
+     * @param mask
+     * @param x
+     * @param y
+     */
+    private void moveMaskBitUp(long[] mask, int x, int y) {
+        int to = y * maskWords + (x >>> 6);
+        long bit = 1L << (x & 63);
+        if ((mask[to + maskWords] & bit) != 0) {
+            mask[to] |= bit;
+        } else {
+            mask[to] &= ~bit;
+        }
+    }
+
+    /**
+     * Shift each row left over the removed pixel.
+     *
+     * @param seam x of the pixel to remove in each row
+     */
+    private void removeVerticalPixels(int[] seam) {
+
+        ownPixels();
+        int newWidth = picWidth - 1;
+
+        for (int j = 0; j < picHeight; j++) {
+
+            int toRemove = seam[j];
+            int rowStart = j * stride;
+            System.arraycopy(pixels, rowStart + toRemove + 1,
+                    pixels, rowStart + toRemove, newWidth - toRemove);
+
+            if (luminance != null) {
+                System.arraycopy(luminance, rowStart + toRemove + 1,
+                        luminance, rowStart + toRemove, newWidth - toRemove);
+            }
+
+            if (energy != null) {
+                System.arraycopy(energy, rowStart + toRemove + 1,
+                        energy, rowStart + toRemove, newWidth - toRemove);
+            }
+
+            if (energyFloat != null) {
+                System.arraycopy(energyFloat, rowStart + toRemove + 1,
+                        energyFloat, rowStart + toRemove, newWidth - toRemove);
+            }
+
+            if (protectMask != null) {
+                deleteMaskBit(protectMask, j * maskWords, toRemove);
+            }
+
+            if (removeMask != null) {
+                deleteMaskBit(removeMask, j * maskWords, toRemove);
+            }
+        }
+        picWidth = newWidth;
     }
 
     /**
-     * Transpose the picture.
+     * Shift each column up over the removed pixel. The pixels are walked row
+     * by row so the buffer is still read sequentially.
+     *
+     * @param seam y of the pixel to remove in each column
      */
-    private void transposePicture() {
+    private void removeHorizontalPixels(int[] seam) {
 
-        Picture transpose = new Picture(picture.height(), picture.width());
+        ownPixels();
+        int newHeight = picHeight - 1;
 
-        for (int j = 0; j < picture.height(); j++) {
-            for (int i = 0; i < picture.width(); i++) {
-                transpose.setRGB(j, i, picture.getRGB(i, j));
+        for (int j = 0; j < newHeight; j++) {
+            int rowStart = j * stride;
+            for (int i = 0; i < picWidth; i++) {
+                if (j >= seam[i]) {
+                    pixels[rowStart + i] = pixels[rowStart + stride + i];
+                    if (luminance != null) {
+                        luminance[rowStart + i] = luminance[rowStart + stride + i];
+                    }
+                    if (energy != null) {
+                        energy[rowStart + i] = energy[rowStart + stride + i];
+                    }
+                    if (energyFloat != null) {
+                        energyFloat[rowStart + i] = energyFloat[rowStart + stride + i];
+                    }
+                    if (protectMask != null) {
+                        moveMaskBitUp(protectMask, i, j);
+                    }
+                    if (removeMask != null) {
+                        moveMaskBitUp(removeMask, i, j);
+                    }
+                }
             }
         }
 
-        // flip the transposed flag
-        picture = new Picture(transpose);
-        transposed = !transposed;
+        // the old last row is gone, clear its mask bits
+        if (protectMask != null) {
+            Arrays.fill(protectMask, newHeight * maskWords, picHeight * maskWords, 0);
+        }
+        if (removeMask != null) {
+            Arrays.fill(removeMask, newHeight * maskWords, picHeight * maskWords, 0);
+        }
+        picHeight = newHeight;
     }
 
     public static void main(String[] args) {
@@ -396,5 +1697,13 @@ public class SeamCarver {
 
         path = sc.findHorizontalSeam();
         System.out.println(Arrays.toString(path));
+
+        // the first resize is stale as soon as the second one is asked for
+        int width = sc.width();
+        int height = sc.height();
+        sc.resizeToAsync(width - 1, height);
+        Picture resized = sc.resizeToAsync(width / 2, height).join();
+        System.out.println(resized.width() + "x" + resized.height());
+        System.out.println(sc.snapshot().width() + "x" + sc.snapshot().height());
     }
 }
@@ -0,0 +1,235 @@
+import edu.princeton.cs.algs4.Picture;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Resize a whole directory (or a list) of pictures with SeamCarver in one JVM.
+ *
+ * Pictures are read lazily and handed to a fixed pool of worker threads. The
+ * reader blocks once maxInFlight pictures are being worked on, so at most that
+ * many decoded pictures are held in memory at once. Each worker reuses its
+ * own SeamCarver.Buffers from picture to picture.
+ *
+ * Usage: java SeamCarverBatch input output size [threads [maxInFlight]]
+ *
+ *   input    directory of pictures, or a text file with one path per line
+ *   output   directory the resized pictures are written to (same file names)
+ *   size     WIDTHxHEIGHT (e.g. 1280x720), or a scale factor (e.g. 0.75)
+ *
+ * @author devin
+ */
+public class SeamCarverBatch {
+
+    private static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".gif", ".bmp"};
+
+    private final File outputDir;
+    private final int targetWidth;
+    private final int targetHeight;
+    private final double scale;
+    private final int threads;
+    private final int maxInFlight;
+
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private final ThreadLocal<SeamCarver.Buffers> buffers
+            = ThreadLocal.withInitial(SeamCarver.Buffers::new);
+
+    /**
+     * @param outputDir
+     * @param targetWidth target width, or 0 to use scale
+     * @param targetHeight target height, or 0 to use scale
+     * @param scale used when no target size is given
+     * @param threads number of worker threads
+     * @param maxInFlight max number of pictures read but not yet written
+     */
+    public SeamCarverBatch(File outputDir, int targetWidth, int targetHeight,
+            double scale, int threads, int maxInFlight) {
+
+        if (outputDir == null) {
+            throw new java.lang.IllegalArgumentException("output directory cannot be null");
+        }
+
+        if (threads <= 0 || maxInFlight <= 0) {
+            throw new java.lang.IllegalArgumentException("threads and maxInFlight must be positive");
+        }
+
+        this.outputDir = outputDir;
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        this.scale = scale;
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Resize every picture, blocking until all of them are written.
+     *
+     * @param files
+     * @throws InterruptedException
+     */
+    public void run(Iterator<Path> files) throws InterruptedException {
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+
+        try {
+            while (files.hasNext()) {
+                Path file = files.next();
+
+                // backpressure, wait until a worker is done with a picture
+                inFlight.acquire();
+                pool.execute(() -> {
+                    try {
+                        resize(file);
+                        done.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        System.err.println(file + ": " + e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Read, carve and write a single picture.
+     *
+     * @param file
+     */
+    private void resize(Path file) {
+
+        Picture picture = new Picture(file.toFile());
+
+        int width = targetWidth > 0 ? targetWidth
+                : (int) Math.max(1, Math.round(picture.width() * scale));
+        int height = targetHeight > 0 ? targetHeight
+                : (int) Math.max(1, Math.round(picture.height() * scale));
+
+        // never upscale
+        width = Math.min(width, picture.width());
+        height = Math.min(height, picture.height());
+
+        SeamCarver sc = new SeamCarver(picture, new DualGradientEnergy(), buffers.get());
+        sc.resizeTo(width, height).save(new File(outputDir, file.getFileName().toString()));
+    }
+
+    public int done() {
+        return done.get();
+    }
+
+    public int failed() {
+        return failed.get();
+    }
+
+    private static boolean isPicture(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lazily list the pictures in a directory, or the paths in a list file.
+     * The stream holds the directory or file open until it is closed.
+     *
+     * @param input
+     * @return
+     * @throws IOException
+     */
+    private static Stream<Path> listFiles(Path input) throws IOException {
+
+        if (Files.isDirectory(input)) {
+            return Files.list(input)
+                    .filter(file -> Files.isRegularFile(file) && isPicture(file));
+        }
+
+        return Files.lines(input, StandardCharsets.UTF_8)
+                .map(String::trim)
+                .filter(line -> !line.isEmpty())
+                .map(line -> Paths.get(line));
+    }
+
+    /**
+     * Peak heap usage so far in bytes, summed over the heap memory pools.
+     *
+     * @return
+     */
+    private static long peakHeapUsed() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        if (args.length < 3) {
+            System.err.println("usage: java SeamCarverBatch input output size [threads [maxInFlight]]");
+            System.exit(1);
+        }
+
+        Path input = Paths.get(args[0]);
+        File outputDir = new File(args[1]);
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("cannot create " + outputDir);
+        }
+
+        int width = 0;
+        int height = 0;
+        double scale = 1;
+        String[] size = args[2].toLowerCase().split("x");
+        if (size.length == 2) {
+            width = Integer.parseInt(size[0]);
+            height = Integer.parseInt(size[1]);
+        } else {
+            scale = Double.parseDouble(args[2]);
+        }
+
+        int threads = args.length > 3 ? Integer.parseInt(args[3])
+                : Runtime.getRuntime().availableProcessors();
+        int maxInFlight = args.length > 4 ? Integer.parseInt(args[4]) : threads;
+
+        SeamCarverBatch batch = new SeamCarverBatch(outputDir, width, height,
+                scale, threads, maxInFlight);
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+
+        long start = System.nanoTime();
+        try (Stream<Path> files = listFiles(input)) {
+            batch.run(files.iterator());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d pictures (%d failed) in %.1f s, %.2f pictures/s%n",
+                batch.done(), batch.failed(), seconds, batch.done() / seconds);
+        System.out.printf("peak heap used %.1f MB%n", peakHeapUsed() / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,187 @@
+import edu.princeton.cs.algs4.Picture;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Rough timings for SeamCarver, not a unit test. Uses a random picture
+ * unless a file name is given.
+ *
+ * Usage: java SeamCarverBenchmark [width height | file] [seams]
+ *
+ * @author devin
+ */
+public class SeamCarverBenchmark {
+
+    private static final int WARMUP_ROUNDS = 2;
+
+    /**
+     * Random picture, seeded so runs are comparable.
+     *
+     * @param width
+     * @param height
+     * @return
+     */
+    private static Picture randomPicture(int width, int height) {
+        Random random = new Random(42);
+        Picture picture = new Picture(width, height);
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                picture.setRGB(i, j, random.nextInt(0x1000000));
+            }
+        }
+        return picture;
+    }
+
+    /**
+     * Remove vertical seams one at a time, returning the seams found.
+     *
+     * @param picture
+     * @param seams
+     * @param parallel
+     * @param energyFunction
+     * @param precision
+     * @return
+     */
+    private static int[][] carve(Picture picture, int seams, boolean parallel,
+            EnergyFunction energyFunction, SeamCarver.Precision precision) {
+        SeamCarver sc = new SeamCarver(picture, energyFunction);
+        sc.setParallel(parallel);
+        sc.setPrecision(precision);
+
+        int[][] found = new int[seams][];
+        for (int k = 0; k < seams; k++) {
+            found[k] = sc.findVerticalSeam();
+            sc.removeVerticalSeam(found[k]);
+        }
+        return found;
+    }
+
+    /**
+     * Time carve() in ms, after a couple of warmup rounds.
+     *
+     * @param picture
+     * @param seams
+     * @param parallel
+     * @param energyFunction
+     * @param precision
+     * @return
+     */
+    private static double timeCarve(Picture picture, int seams, boolean parallel,
+            EnergyFunction energyFunction, SeamCarver.Precision precision) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            carve(picture, seams, parallel, energyFunction, precision);
+        }
+        long start = System.nanoTime();
+        carve(picture, seams, parallel, energyFunction, precision);
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    private static void parallelFindSeam(Picture picture, int seams) {
+        EnergyFunction dualGradient = new DualGradientEnergy();
+        SeamCarver.Precision precision = SeamCarver.Precision.DOUBLE;
+        if (!Arrays.deepEquals(carve(picture, seams, false, dualGradient, precision),
+                carve(picture, seams, true, dualGradient, precision))) {
+            throw new IllegalStateException("parallel seams differ from serial seams");
+        }
+
+        double serial = timeCarve(picture, seams, false, dualGradient, precision);
+        double parallel = timeCarve(picture, seams, true, dualGradient, precision);
+        System.out.printf("findSeam serial   %5dx%-5d %4d seams %10.1f ms%n",
+                picture.width(), picture.height(), seams, serial);
+        System.out.printf("findSeam parallel %5dx%-5d %4d seams %10.1f ms (%.2fx, %d threads)%n",
+                picture.width(), picture.height(), seams, parallel, serial / parallel,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    private static void energyFunctions(Picture picture, int seams) {
+        EnergyFunction[] functions = {
+            new DualGradientEnergy(),
+            new LuminanceGradientEnergy()
+        };
+
+        double pixels = (double) picture.width() * picture.height() * seams;
+        for (EnergyFunction function : functions) {
+            double ms = timeCarve(picture, seams, false, function, SeamCarver.Precision.DOUBLE);
+            System.out.printf("%-25s %5dx%-5d %4d seams %10.1f ms %8.1f Mpixel/s%n",
+                    function.getClass().getSimpleName(), picture.width(), picture.height(),
+                    seams, ms, pixels / ms / 1e3);
+        }
+    }
+
+    private static void precisions(Picture picture, int seams) {
+        EnergyFunction dualGradient = new DualGradientEnergy();
+        int[][] exact = carve(picture, seams, false, dualGradient, SeamCarver.Precision.DOUBLE);
+
+        for (SeamCarver.Precision precision : SeamCarver.Precision.values()) {
+            double ms = timeCarve(picture, seams, false, dualGradient, precision);
+            boolean same = Arrays.deepEquals(exact,
+                    carve(picture, seams, false, dualGradient, precision));
+            System.out.printf("precision %-8s %5dx%-5d %4d seams %10.1f ms, %s seams as DOUBLE%n",
+                    precision, picture.width(), picture.height(), seams, ms,
+                    same ? "same" : "different");
+        }
+    }
+
+    /**
+     * Shrink by removing vertical and horizontal seams in turn.
+     *
+     * @param picture
+     * @param seams per direction
+     */
+    private static void alternate(Picture picture, int seams) {
+        SeamCarver sc = new SeamCarver(picture);
+        for (int k = 0; k < seams; k++) {
+            sc.removeVerticalSeams(1);
+            sc.removeHorizontalSeams(1);
+        }
+        sc.picture();
+    }
+
+    private static void retarget(Picture picture, int seams) {
+        int width = picture.width() - seams;
+        int height = picture.height() - seams;
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            alternate(picture, seams);
+            new SeamCarver(picture).retarget(width, height);
+        }
+
+        long start = System.nanoTime();
+        alternate(picture, seams);
+        double alternation = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        new SeamCarver(picture).retarget(width, height);
+        double transportMap = (System.nanoTime() - start) / 1e6;
+
+        System.out.printf("alternate          %5dx%-5d -> %5dx%-5d %10.1f ms%n",
+                picture.width(), picture.height(), width, height, alternation);
+        System.out.printf("retarget           %5dx%-5d -> %5dx%-5d %10.1f ms (%.1fx alternate)%n",
+                picture.width(), picture.height(), width, height, transportMap,
+                transportMap / alternation);
+    }
+
+    public static void main(String[] args) {
+
+        Picture picture;
+        int seams = 10;
+        if (args.length >= 2 && args[0].matches("\\d+")) {
+            picture = randomPicture(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+            if (args.length > 2) {
+                seams = Integer.parseInt(args[2]);
+            }
+        } else if (args.length >= 1) {
+            picture = new Picture(args[0]);
+            if (args.length > 1) {
+                seams = Integer.parseInt(args[1]);
+            }
+        } else {
+            picture = randomPicture(2000, 2000);
+        }
+
+        parallelFindSeam(picture, seams);
+        energyFunctions(picture, seams);
+        precisions(picture, seams);
+        retarget(picture, seams);
+    }
+}